@@ -16,7 +16,7 @@ public class EyeApp {
 			System.out.printf("arg[%d] = %s%n", i, args[i]);
 		}
 
-		if (args.length <6 || args.length > 7){
+		if (args.length <5 || args.length > 6){
 			System.err.print("Wrong number of arguments!");
 		}
 
@@ -25,7 +25,6 @@ public class EyeApp {
 		final String camName = args[2];
 		final float latitude = Float.parseFloat(args[3]);
 		final float longitude = Float.parseFloat(args[4]);
-		final int nRep = Integer.parseInt(args[5]);
 
 		SiloServerFrontend frontend;
 
@@ -33,14 +32,20 @@ public class EyeApp {
 			System.err.print("Camera name must be at lest 3 characters and at most 15 characters long.");
 		}
 
+		// Number of shards, for a sharded deployment
+		final int nShards = Integer.getInteger("sauron.shards", 1);
+
 		try{
+			if(nShards > 1){
+					frontend = SiloServerFrontend.sharded(zooHost, zooPort, nShards);
+			}
 			// If instance number is given
-			if(args.length == 7){
-					frontend = new SiloServerFrontend(zooHost, zooPort, nRep, args[6]);
+			else if(args.length == 6){
+					frontend = new SiloServerFrontend(zooHost, zooPort, args[5]);
 			}
 			// If not, choose random instance
 			else{
-					frontend = new SiloServerFrontend(zooHost, zooPort, nRep);
+					frontend = new SiloServerFrontend(zooHost, zooPort);
 				}
 
 			frontend.setCamera(camName, latitude, longitude);
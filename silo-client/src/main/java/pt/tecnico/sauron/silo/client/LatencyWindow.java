@@ -0,0 +1,39 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the last calls, to tell how long a call usually takes.
+ */
+class LatencyWindow {
+  private final long[] samples;
+  // Next sample to overwrite, and number of samples kept
+  private int next;
+  private int count;
+
+  /**
+   * @param size number of calls kept.
+   */
+  LatencyWindow(final int size){
+    samples = new long[size];
+  }
+
+  synchronized void record(final long nanos){
+    samples[next] = nanos;
+    next = (next + 1) % samples.length;
+    count = Math.min(count + 1, samples.length);
+  }
+
+  /**
+   * @param p percentile, from 0 to 100.
+   * @param min fewest samples to estimate it from.
+   * @return the p-th percentile of the latencies kept, in nanoseconds, or -1 if there are fewer than min.
+   */
+  synchronized long percentile(final double p, final int min){
+    if(count < Math.max(min, 1))
+      return -1;
+    final long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.min(count - 1, Math.floor(p / 100 * count))];
+  }
+}
@@ -0,0 +1,133 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+/**
+ * Latency-aware choice of replica. Keeps, for each replica, exponentially weighted moving
+ * averages of its latency, measured by pinging it, and of the rate at which calls to it fail.
+ * Replicas are scored by their latency, raised by their error rate, and picked by the power
+ * of two choices: of two random replicas, the one with the lower score.
+ */
+class ReplicaSelector {
+  // Weight of the latest sample in the averages
+  private static final double ALPHA = 0.3;
+  // Score of a replica whose calls all fail, relative to a healthy one with the same latency
+  private static final double ERROR_PENALTY = 10;
+  // A replica must score this much lower than the current one, relatively and in milliseconds, to move to it
+  private static final double MARGIN = 0.3;
+  private static final double MIN_GAIN = 1;
+
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+  private static final class Stats {
+    // In milliseconds, NaN until measured
+    private double latency = Double.NaN;
+    private double errors;
+
+    private synchronized void latency(final double ms){
+      latency = Double.isNaN(latency) ? ms : latency + ALPHA * (ms - latency);
+    }
+
+    private synchronized void outcome(final boolean failed){
+      errors += ALPHA * ((failed ? 1 : 0) - errors);
+    }
+
+    private synchronized double score(){
+      return Double.isNaN(latency) ? Double.MAX_VALUE : latency * (1 + ERROR_PENALTY * errors);
+    }
+
+    @Override
+    public synchronized String toString(){
+      return String.format("%.2f ms, %.0f%% errors", latency, errors * 100);
+    }
+  }
+
+  private Stats stats(final String path){
+    return stats.computeIfAbsent(path, p -> new Stats());
+  }
+
+  /**
+   * Records a latency sample of a replica.
+   */
+  void latency(final String path, final long nanos){
+    stats(path).latency(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  /**
+   * Records whether a call to a replica failed.
+   */
+  void outcome(final String path, final boolean failed){
+    stats(path).outcome(failed);
+  }
+
+  /**
+   * @return the score of a replica, lower is better.
+   */
+  double score(final String path){
+    return stats(path).score();
+  }
+
+  /**
+   * @return whether a replica scores clearly better than the current one.
+   */
+  boolean better(final String candidate, final String current){
+    final double score = score(candidate);
+    return score < score(current) * (1 - MARGIN) && score + MIN_GAIN < score(current);
+  }
+
+  /**
+   * @return two distinct random replicas, or the only one.
+   */
+  List<ZKRecord> sample(final List<ZKRecord> records){
+    final List<ZKRecord> shuffled = new ArrayList<>(records);
+    Collections.shuffle(shuffled);
+    return shuffled.subList(0, Math.min(2, shuffled.size()));
+  }
+
+  /**
+   * Monitors the calls made through a channel to a replica. Calls that time out
+   * or find it unavailable count as errors; any other reply counts as a success.
+   */
+  ClientInterceptor monitor(final String path){
+    return new ClientInterceptor(){
+      @Override
+      public <Q, R> ClientCall<Q, R> interceptCall(final MethodDescriptor<Q, R> method, final CallOptions options, final Channel next){
+        return new ForwardingClientCall.SimpleForwardingClientCall<Q, R>(next.newCall(method, options)){
+          @Override
+          public void start(final Listener<R> listener, final Metadata headers){
+            super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<R>(listener){
+              @Override
+              public void onClose(final Status status, final Metadata trailers){
+                if(status.getCode() != Status.Code.CANCELLED)
+                  outcome(path, status.getCode() == Status.Code.UNAVAILABLE || status.getCode() == Status.Code.DEADLINE_EXCEEDED);
+                super.onClose(status, trailers);
+              }
+            }, headers);
+          }
+        };
+      }
+    };
+  }
+
+  @Override
+  public String toString(){
+    return stats.toString();
+  }
+}
@@ -1,78 +1,146 @@
 package pt.tecnico.sauron.silo.client;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 import com.google.protobuf.Message;
 
+import pt.tecnico.sauron.silo.contract.VectorClock;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Timestamp;
+
+/**
+ * Least recently used cache of query responses, each kept with the vector clock of
+ * the replica that produced it. Used to avoid going back in time when a replica
+ * answers with older data than the client has already seen.
+ */
 public class SiloFrontendCache {
 
-  public class SiloFrontendCacheEntry {
-    private String request;
-    private Message data;
+  /**
+   * Queries whose responses are cached.
+   */
+  public enum Operation {
+    TRACK, TRACK_MATCH, TRACE, CAM_INFO
+  }
 
-    public SiloFrontendCacheEntry(String request, Message data){
-      this.request = request;
-      this.data = data;
-    }
+  /**
+   * Identifies a query: the operation, and the object type and id (or pattern, or camera name) asked for.
+   */
+  public static final class Key {
+    private final Operation operation;
+    private final ObjectType type;
+    private final String id;
 
-    public void setRequest(String request){
-      this.request= request;
+    public Key(Operation operation, ObjectType type, String id) {
+      this.operation = operation;
+      this.type = type;
+      this.id = id;
     }
 
-    public void setData(Message data){
-      this.data = data;
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return operation == k.operation && type == k.type && id.equals(k.id);
     }
 
-    public String getRequest(){
-      return request;
+    @Override
+    public int hashCode() {
+      return Objects.hash(operation, type, id);
     }
 
-    public Message getData(){
-      return data;
+    @Override
+    public String toString() {
+      return operation + "_" + type + "_" + id;
     }
+  }
 
-    @Override
-    public boolean equals(Object o){
-      if( o instanceof SiloFrontendCacheEntry){
-        return ((SiloFrontendCacheEntry) o).getRequest() == this.request;
-      }
-      else
-        return false;
+  private static class CachedReply {
+    private final Message data;
+    private final VectorClock clock;
+    private final long time;
+
+    CachedReply(Message data, VectorClock clock, long time) {
+      this.data = data;
+      this.clock = clock;
+      this.time = time;
     }
   }
 
-  private int maxSize;
-  private List<SiloFrontendCacheEntry> cache = new ArrayList<>();
+  private final long ttl;
+  // In access order, so that the first entry is the least recently used
+  private final LinkedHashMap<Key, CachedReply> cache;
+  private long hits;
+  private long misses;
 
-  public SiloFrontendCache(int size){
-    maxSize = size;
+  /**
+   * @param size maximum number of responses kept.
+   * @param ttl milliseconds a response is kept for, 0 to keep it until evicted.
+   */
+  public SiloFrontendCache(int size, long ttl) {
+    this.ttl = ttl;
+    cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedReply> eldest) {
+        return size() > size;
+      }
+    };
   }
 
-  public void addData(String request, Message data){
-    SiloFrontendCacheEntry entry = new SiloFrontendCacheEntry(request, data);
-    if(cache.contains(entry))
-      cache.remove(entry);
-    else if(cache.size() == maxSize)
-        cache.remove(0);
-    cache.add(entry);
+  /**
+   * Keeps a response, unless a strictly newer one is already kept.
+   *
+   * @param timestamp the clock of the replica that produced the response.
+   */
+  public synchronized void put(Key key, Message data, Timestamp timestamp) {
+    CachedReply old = cache.get(key);
+    if (old != null && !expired(old) && old.clock.compare(timestamp) == VectorClock.Order.AFTER)
+      return;
+    cache.put(key, new CachedReply(data, new VectorClock(timestamp), System.currentTimeMillis()));
   }
 
-  public Message getData(String request){
-    for(SiloFrontendCacheEntry e: cache){
-      if(e.getRequest().equals(request)){
-        return e.getData();
-      }
+  /**
+   * Looks up a response at least as recent as a given clock.
+   *
+   * @param seen the clock the response must dominate.
+   * @return the response, or null if none is kept, or the kept one is older or expired.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T extends Message> T get(Key key, Timestamp seen) {
+    CachedReply e = cache.get(key);
+    if (e != null && expired(e)) {
+      cache.remove(key);
+      e = null;
     }
-    return null;
+    if (e == null || !e.clock.dominates(seen)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return (T) e.data;
   }
 
-  public boolean hasData(String request){
-    for(SiloFrontendCacheEntry e: cache){
-      if(e.getRequest().equals(request)){
-        return true;
-      }
-    }
-    return false;
+  private boolean expired(CachedReply e) {
+    return ttl > 0 && System.currentTimeMillis() - e.time > ttl;
+  }
+
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  /**
+   * @return the lookups that found a recent enough response.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the lookups that found none.
+   */
+  public synchronized long getMisses() {
+    return misses;
   }
-}
\ No newline at end of file
+}
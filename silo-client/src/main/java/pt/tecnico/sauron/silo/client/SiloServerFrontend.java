@@ -1,9 +1,14 @@
 package pt.tecnico.sauron.silo.client;
 
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.sauron.silo.contract.Shards;
+import pt.tecnico.sauron.silo.contract.VectorClock;
 import pt.tecnico.sauron.silo.grpc.*;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
@@ -19,39 +24,90 @@ import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.google.protobuf.Empty;
+import com.google.protobuf.Message;
 
 /**
  * Server communication class. Hides all distributed logic from those who use it.
+ * Thread-safe, so a single instance can serve every thread of a client over one
+ * connection.
  */
 public class SiloServerFrontend {
 
   // Base path for zookeeper node structure
   private static final String BASEPATH = "/grpc/sauron/silo";
   private final ZKNaming zkNaming;
-
-  // Grpc channel and stub
-  private ManagedChannel _channel;
-  private SiloGrpc.SiloBlockingStub _stub;
-
-  // Timestamp and cache
-  private final List<Integer> _currentTimestamp;
-  private final SiloFrontendCache cache = new SiloFrontendCache(32);
+  // Path the replicas connected to are registered under
+  private final String basePath;
+
+  // Frontend of each shard, and threads to call them at once. Null if not sharded
+  private final List<SiloServerFrontend> shards;
+  private final ExecutorService shardExecutor;
+
+  // Replica connected to, shared by every thread. Replaced as a whole on failover
+  private volatile Connection connection;
+  // Connection the camera last logged in through
+  private volatile Connection loggedIn;
+
+  // Latency and error rate of each replica. Replicas are picked by them unless started with -Dsauron.selection=random
+  private final ReplicaSelector selector = new ReplicaSelector();
+  private final boolean adaptive = !"random".equals(System.getProperty("sauron.selection"));
+  // Periodically re-evaluates the replica connected to. Null if locked, or if replicas are picked at random
+  private ScheduledExecutorService rebalancer;
+  // Milliseconds between re-evaluations, and a ping may take
+  private final long rebalanceInterval = Long.getLong("sauron.selection.interval", 5000);
+  private static final long PING_DEADLINE = 1000;
+
+  // Percentile of read latency after which reads are also sent to a second replica, set with -Dsauron.hedge. 0 not to
+  private final int hedgePercentile = Integer.getInteger("sauron.hedge", 0);
+  // Latency of the last reads, and fewest reads to estimate the percentile from
+  private final LatencyWindow readLatency = new LatencyWindow(256);
+  private static final int HEDGE_MIN_READS = 20;
+  // Second replica, that slow reads are also sent to. Null until needed
+  private Connection hedgeConnection;
+  private final Object hedgeLock = new Object();
+  // Sends slow reads to the second replica. Null if not hedging
+  private ScheduledExecutorService hedger;
+
+  // Fails over for asynchronous calls, which must not block the gRPC callbacks
+  private final ExecutorService failoverExecutor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "failover");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Timestamp and cache. Clocks are replaced on every change, never changed, so they can be read without locking
+  private final AtomicReference<VectorClock> _currentTimestamp;
+  private final SiloFrontendCache cache = new SiloFrontendCache(Integer.getInteger("sauron.cache.size", 32),
+      Long.getLong("sauron.cache.ttl", 0));
 
   // Camera for re-login and single-instance flag
-  private Camera cam;
+  private volatile Camera cam;
   private final boolean isLocked;
 
-  private int sessionId;
+  private volatile int sessionId;
+  // Last asynchronous report sent. Replicas tell a client's reports apart by its timestamp, so each waits for the previous one
+  private CompletableFuture<Void> lastReport = CompletableFuture.completedFuture(null);
   private String lockedPath;
 
   // Logger, handler and messages
+  private Handler logHandler;
   private final Logger logger = Logger.getLogger(SiloServerFrontend.class.getName());
   private static final String SERVER_DOWN = "Replica is down. Trying another one";
   private static final String FAILED_3_TIMES= "Failed 3 times. Reconnecting";
@@ -67,13 +123,16 @@ public class SiloServerFrontend {
    * @throws ZKNamingException
    * @throws IOException
    */
-  public SiloServerFrontend(final String zooHost, final String zooPort, int nRep, final String idReplica) throws ZKNamingException, IOException{
+  public SiloServerFrontend(final String zooHost, final String zooPort, final String idReplica) throws ZKNamingException, IOException{
     initLogger();
     isLocked = true;
     this.zkNaming = new ZKNaming(zooHost,zooPort);
+    basePath = BASEPATH;
     lockedPath = BASEPATH + "/" + idReplica;
-    _currentTimestamp = new ArrayList<>(Collections.nCopies(nRep, 0));
-    connectLocked();
+    _currentTimestamp = new AtomicReference<>(new VectorClock());
+    shards = null;
+    shardExecutor = null;
+    connectLocked(null);
   }
 
   /**
@@ -85,12 +144,118 @@ public class SiloServerFrontend {
    * @param zooPort ZooKeeper port number.
    * @throws IOException
    */
-  public SiloServerFrontend(final String zooHost, final String zooPort, int nRep) throws IOException{
+  public SiloServerFrontend(final String zooHost, final String zooPort) throws IOException{
     initLogger();
-    _currentTimestamp = new ArrayList<>(Collections.nCopies(nRep, 0));
+    _currentTimestamp = new AtomicReference<>(new VectorClock());
     this.isLocked = false;
     this.zkNaming = new ZKNaming(zooHost,zooPort);
-    this.connectRandom();
+    basePath = BASEPATH;
+    shards = null;
+    shardExecutor = null;
+    this.connectRandom(null);
+    startRebalancing();
+    startHedging();
+  }
+
+  /**
+   * Constructor for a sharded deployment. Keeps a frontend connected to a random
+   * replica of each shard, and sends each operation to the shards that hold its objects.
+   *
+   * @param zooHost ZooKeeper host name.
+   * @param zooPort ZooKeeper port number.
+   * @param nShards number of shards, the same the replicas were started with.
+   * @throws IOException
+   * @see Shards
+   */
+  private SiloServerFrontend(final String zooHost, final String zooPort, final int nShards) throws IOException{
+    initLogger();
+    _currentTimestamp = new AtomicReference<>(new VectorClock());
+    this.isLocked = false;
+    this.zkNaming = new ZKNaming(zooHost,zooPort);
+    basePath = null;
+    shards = new ArrayList<>();
+    for(int i = 0; i < nShards; i++){
+      shards.add(new SiloServerFrontend(zkNaming, Shards.path(i)));
+    }
+    shardExecutor = Executors.newFixedThreadPool(nShards, r -> {
+      Thread t = new Thread(r, "shard-call");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Constructor for the frontend of one shard, sharing the logger and naming
+   * service of a sharded frontend. Also used by tests, to connect to replicas
+   * registered under another path.
+   *
+   * @param zkNaming naming service where replicas are registered.
+   * @param basePath path the replicas are registered under.
+   */
+  SiloServerFrontend(final ZKNaming zkNaming, final String basePath){
+    _currentTimestamp = new AtomicReference<>(new VectorClock());
+    this.isLocked = false;
+    this.zkNaming = zkNaming;
+    this.basePath = basePath;
+    shards = null;
+    shardExecutor = null;
+    this.connectRandom(null);
+    startRebalancing();
+    startHedging();
+  }
+
+  /**
+   * Creates a frontend for a sharded deployment.
+   *
+   * @param zooHost ZooKeeper host name.
+   * @param zooPort ZooKeeper port number.
+   * @param nShards number of shards, the same the replicas were started with.
+   * @return the frontend.
+   * @throws IOException
+   */
+  public static SiloServerFrontend sharded(final String zooHost, final String zooPort, final int nShards) throws IOException{
+    return new SiloServerFrontend(zooHost, zooPort, nShards);
+  }
+
+  /**
+   * @return the frontend of the shard that holds an object.
+   */
+  private SiloServerFrontend shardOf(final ObjectType type, final String id){
+    return shards.get(Shards.of(type, id, shards.size()));
+  }
+
+  /**
+   * Runs calls to several shards at once.
+   *
+   * @return the result of each call, in order.
+   * @throws StatusRuntimeException the error of the first call that failed, if any.
+   */
+  private <T> List<T> scatter(final List<Supplier<T>> calls){
+    List<CompletableFuture<T>> futures = new ArrayList<>();
+    for(Supplier<T> call : calls){
+      futures.add(CompletableFuture.supplyAsync(call, shardExecutor));
+    }
+    List<T> results = new ArrayList<>();
+    for(CompletableFuture<T> f : futures){
+      results.add(join(f));
+    }
+    return results;
+  }
+
+  /**
+   * Waits for a call to complete.
+   *
+   * @return its result.
+   * @throws StatusRuntimeException the error it failed with, if any.
+   */
+  private static <T> T join(final CompletableFuture<T> future){
+    try{
+      return future.join();
+    }catch(CompletionException e){
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw e;
+    }
   }
 
   /**
@@ -106,6 +271,7 @@ public class SiloServerFrontend {
     SimpleFormatter formatter = new SimpleFormatter();
     file.setFormatter(formatter);
     logger.addHandler(file);
+    logHandler = file;
   }
 
   /**
@@ -118,74 +284,230 @@ public class SiloServerFrontend {
    */
   public void setCamera(final String name, final float latitude, final float longitude){
     this.cam = Camera.newBuilder().setName(name).setCoordinates(Coordinates.newBuilder().setLongitude(longitude).setLatitude(latitude).build()).build();
+    if(shards != null){
+      for(SiloServerFrontend s : shards){
+        s.setCamera(name, latitude, longitude);
+      }
+    }
   }
 
 
   /**
-   * Connects to a random replica.
-   * Will shutdown previous channel.
+   * Channel to a replica and its stubs. Calls from every thread share the
+   * channel, multiplexed over a single HTTP/2 connection.
    */
-  private void connectRandom(){
+  private static final class Connection {
+    // Path the replica is registered under
+    private final String path;
+    private final ManagedChannel channel;
+    private final SiloGrpc.SiloBlockingStub stub;
+    private final SiloGrpc.SiloStub asyncStub;
+
+    /**
+     * @param monitor records the outcome of every call.
+     */
+    private Connection(final String path, final String target, final ClientInterceptor monitor){
+      this.path = path;
+      channel = ManagedChannelBuilder.forTarget(target).usePlaintext().intercept(monitor).build();
+      stub = SiloGrpc.newBlockingStub(channel);
+      asyncStub = SiloGrpc.newStub(channel);
+    }
+  }
+
+  /**
+   * Measures the latency of a replica with a ping.
+   */
+  private void ping(final Connection conn){
+    final long start = System.nanoTime();
     try{
-      if(_channel != null){
-        _channel.shutdownNow();
-      }
-    final Collection<ZKRecord> records = zkNaming.listRecords(BASEPATH);
-    final String path = records.toArray(ZKRecord[]::new)[new Random().nextInt(records.size())].getPath();
-    final String target = zkNaming.lookup(path).getURI();
-    _channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-    _stub = SiloGrpc.newBlockingStub(_channel);
-    logger.log(Level.INFO, ()->"Connected to " + path + " on " + target);
+      conn.stub.withDeadlineAfter(PING_DEADLINE, TimeUnit.MILLISECONDS).ctrlPing(PingRequest.newBuilder().setMessage("latency").build());
+      selector.latency(conn.path, System.nanoTime() - start);
+    }catch(final StatusRuntimeException e){
+      // Counted as an error by the monitor, unless cancelled by a shutdown
+      if(e.getStatus().getCode() != Status.Code.CANCELLED)
+        logger.log(Level.WARNING, "Ping to {0} failed: {1}", new Object[]{ conn.path, e.getStatus() });
+    }
+  }
+
+  /**
+   * Picks a replica by the power of two choices: connects to two random ones,
+   * pings them and keeps the one that scores best. Picks one uniformly at random
+   * if replicas are not picked by latency.
+   *
+   * @param records replicas to pick from.
+   * @return a connection to the replica picked.
+   */
+  private Connection choose(final List<ZKRecord> records){
+    if(!adaptive){
+      final ZKRecord record = records.get(new Random().nextInt(records.size()));
+      return new Connection(record.getPath(), record.getURI(), selector.monitor(record.getPath()));
+    }
+    Connection best = null;
+    for(ZKRecord record : selector.sample(records)){
+      final Connection conn = new Connection(record.getPath(), record.getURI(), selector.monitor(record.getPath()));
+      ping(conn);
+      if(best == null || selector.score(conn.path) < selector.score(best.path)){
+        if(best != null)
+          best.channel.shutdownNow();
+        best = conn;
+      }else{
+        conn.channel.shutdownNow();
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Periodically re-evaluates the replica connected to, if replicas are picked by latency.
+   */
+  private void startRebalancing(){
+    if(!adaptive)
+      return;
+    rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "replica-selection");
+      t.setDaemon(true);
+      return t;
+    });
+    rebalancer.scheduleWithFixedDelay(this::rebalance, rebalanceInterval, rebalanceInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts the timer that sends slow reads to a second replica, if reads are hedged.
+   */
+  private void startHedging(){
+    if(hedgePercentile <= 0)
+      return;
+    hedger = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "hedged-reads");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Pings the replica connected to and two other random ones, and moves to the
+   * best of these if it scores clearly better, logging in again if a camera is set.
+   * Only the move holds the frontend's lock.
+   */
+  private void rebalance(){
+    final Connection current = connection;
+    try{
+      final List<ZKRecord> others = new ArrayList<>(zkNaming.listRecords(basePath));
+      others.removeIf(record -> record.getPath().equals(current.path));
+      if(others.isEmpty())
+        return;
+      ping(current);
+      final Connection best = choose(others);
+      if(!selector.better(best.path, current.path)){
+        best.channel.shutdownNow();
+        return;
+      }
+      synchronized(this){
+        if(connection != current){
+          // Failed over meanwhile
+          best.channel.shutdownNow();
+          return;
+        }
+        logger.log(Level.INFO, "Moving from {0} to {1}: {2}", new Object[]{ current.path, best.path, selector });
+        swap(best);
+        if(cam != null)
+          camJoin(CamJoinRequest.newBuilder().setCam(cam), 0);
+      }
+    }catch(final ZKNamingException | RuntimeException e){
+      // Tried again on the next run
+      logger.log(Level.WARNING, "Could not re-evaluate replica: {0}", e.getMessage());
+    }
+  }
+
+  /**
+   * Replaces the connection. The previous channel is shut down once the
+   * calls still in flight on it are over.
+   */
+  private void swap(final Connection next){
+    final Connection previous = connection;
+    connection = next;
+    if(previous != null){
+      previous.channel.shutdown();
+    }
+  }
+
+  /**
+   * Connects to another replica, unless the connection that failed was
+   * already replaced. Calls in flight fail together, so only the first to
+   * fail reconnects, and the others retry on the new connection.
+   *
+   * @param failed the connection a call failed on, null to connect for the first time.
+   * @throws StatusRuntimeException UNAVAILABLE if the replicas cannot be listed.
+   * @see SiloServerFrontend#choose(List)
+   */
+  private synchronized void connectRandom(final Connection failed){
+    if(connection != failed)
+      return;
+    try{
+    final List<ZKRecord> records = new ArrayList<>(zkNaming.listRecords(basePath));
+    if(failed != null && records.size() > 1)
+      records.removeIf(record -> record.getPath().equals(failed.path));
+    final Connection next = choose(records);
+    swap(next);
+    logger.log(Level.INFO, ()->"Connected to " + next.path + " on " + next.channel.authority());
     }catch(ZKNamingException e){
       logger.severe(e.getMessage());
-      System.exit(1);
+      throw Status.UNAVAILABLE.withDescription("Could not list replicas").withCause(e).asRuntimeException();
     }
   }
 
   /**
-   * Connects to a random replica, loggin in with saved camera immediately after.
+   * Connects to a random replica, loggin in with saved camera immediately after,
+   * unless already logged in through the connection that replaced the failed one.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @param failed the connection a call failed on.
+   *
+   * @see SiloServerFrontend#connectRandom(Connection)
    * @see SiloServerFrontend#camJoin(CamJoinRequest.Builder, int)
    */
-  private void connectRandomCam(){
+  private synchronized void connectRandomCam(final Connection failed){
     final CamJoinRequest.Builder request = CamJoinRequest.newBuilder().setCam(this.cam);
-    connectRandom();
-    camJoin(request, 0);
+    connectRandom(failed);
+    if(loggedIn != connection)
+      camJoin(request, 0);
   }
 
   /**
-   * Connects to locked replica.
-   * Will shutdown previous channel.
+   * Connects to locked replica, unless the connection that failed was already replaced.
+   *
+   * @param failed the connection a call failed on, null to connect for the first time.
+   * @throws StatusRuntimeException UNAVAILABLE if the replica cannot be looked up.
    */
-  private void connectLocked(){
+  private synchronized void connectLocked(final Connection failed){
+    if(connection != failed)
+      return;
     try{
-      if(_channel != null){
-        _channel.shutdownNow();
-      }
       String target;
       target = zkNaming.lookup(lockedPath).getURI();
 
       logger.log(Level.INFO, "Lock connected to {0}", lockedPath);
 
-      _channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-      _stub = SiloGrpc.newBlockingStub(_channel);
+      swap(new Connection(lockedPath, target, selector.monitor(lockedPath)));
     }catch(ZKNamingException e){
       logger.severe(e.getMessage());
-      System.exit(1);
+      throw Status.UNAVAILABLE.withDescription("Could not look up " + lockedPath).withCause(e).asRuntimeException();
     }
   }
 
   /**
-   * Connects to locked replica, loggin in with saved camera immediately after.
+   * Connects to locked replica, loggin in with saved camera immediately after,
+   * unless already logged in through the connection that replaced the failed one.
+   *
+   * @param failed the connection a call failed on.
    *
-   * @see SiloServerFrontend#connectLocked()
+   * @see SiloServerFrontend#connectLocked(Connection)
    * @see SiloServerFrontend#camJoin(CamJoinRequest.Builder, int)
    */
-  private void connectLockedCam(){
+  private synchronized void connectLockedCam(final Connection failed){
     final CamJoinRequest.Builder request = CamJoinRequest.newBuilder().setCam(this.cam);
-    connectLocked();
-    camJoin(request, 0);
+    connectLocked(failed);
+    if(loggedIn != connection)
+      camJoin(request, 0);
   }
 
   /**
@@ -197,6 +519,14 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#ctrlPing(PingRequest, int)
    */
   public PingResponse ctrlPing(final PingRequest request) {
+    if(shards != null){
+      // Every shard must answer
+      List<Supplier<PingResponse>> calls = new ArrayList<>();
+      for(SiloServerFrontend s : shards){
+        calls.add(() -> s.ctrlPing(request));
+      }
+      return scatter(calls).get(0);
+    }
     return ctrlPing(request, 0);
   }
 
@@ -209,23 +539,24 @@ public class SiloServerFrontend {
    * @param c repetition counter.
    * @return a PingResponse.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private PingResponse ctrlPing(final PingRequest request, final int c) {
     // If this is the 4th try, try another replica or end process, if locked.
     if(c == 3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         return ctrlPing(request, 0);
       }else{
         throw new StatusRuntimeException(Status.UNAVAILABLE);
       }
     }
 
+    final Connection conn = connection;
     try{
 
-      return _stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlPing(request);
+      return conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlPing(request);
 
     } catch(final StatusRuntimeException e){
       if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
@@ -235,11 +566,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           return ctrlPing(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           return ctrlPing(request, c+1);
         }
       }else{
@@ -256,6 +587,14 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#ctrlClear(int)
    */
   public void ctrlClear() {
+    if(shards != null){
+      List<Supplier<Void>> calls = new ArrayList<>();
+      for(SiloServerFrontend s : shards){
+        calls.add(() -> { s.ctrlClear(); return null; });
+      }
+      scatter(calls);
+      return;
+    }
     ctrlClear(0);
   }
 
@@ -266,14 +605,14 @@ public class SiloServerFrontend {
    *
    * @param c repetition counter.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private void ctrlClear(final int c){
     // If this is the 4th try, try another replica or end process, if locked.
     if(c == 3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         ctrlClear(0);
         return;
       }else{
@@ -281,8 +620,9 @@ public class SiloServerFrontend {
       }
     }
 
+    final Connection conn = connection;
     try{
-      _stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlClear(Empty.newBuilder().build());
+      conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlClear(Empty.newBuilder().build());
     }catch(final StatusRuntimeException e){
       if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
         // Deadline, try again
@@ -291,11 +631,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
         // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           ctrlClear(0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           ctrlClear(c+1);
         }
       }else{
@@ -314,6 +654,11 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#ctrlInit(InitRequest, int)
    */
   public void ctrlInit(final InitRequest request) {
+    if(shards != null){
+      Observation o = request.getData().getObservation();
+      shardOf(o.getType(), o.getIdentifier()).ctrlInit(request);
+      return;
+    }
     ctrlInit(request, 0);
   }
 
@@ -325,14 +670,14 @@ public class SiloServerFrontend {
    * @param request a InitRequest.
    * @param c repetition counter.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private void ctrlInit(final InitRequest request, final int c){
     // If this is the 4th try, try another replica or end process, if locked.
     if(c == 3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         ctrlInit(request, 0);
         return;
       }else{
@@ -340,8 +685,9 @@ public class SiloServerFrontend {
       }
     }
 
+    final Connection conn = connection;
     try{
-      _stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlInit(request);
+      conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).ctrlInit(request);
 
     } catch(final StatusRuntimeException e){
       if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
@@ -351,11 +697,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
         // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           ctrlInit(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           ctrlInit(request, c+1);
         }
       }else{
@@ -375,6 +721,20 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#trackMatch(TrackMatchRequest.Builder, int)
    */
   public TrackMatchResponse trackMatch(final TrackMatchRequest.Builder request) {
+    if(shards != null){
+      // Any shard may hold matching objects. Their timestamps are unrelated, so none is returned
+      List<Supplier<TrackMatchResponse>> calls = new ArrayList<>();
+      for(SiloServerFrontend s : shards){
+        calls.add(() -> s.trackMatch(request.clone()));
+      }
+      TrackMatchResponse.Builder res = TrackMatchResponse.newBuilder();
+      for(TrackMatchResponse r : scatter(calls)){
+        res.addAllObservation(r.getObservationList());
+      }
+      return res.build();
+    }
+    if(hedger != null)
+      return join(trackMatchAsync(request));
     return trackMatch(request, 0);
   }
 
@@ -387,36 +747,26 @@ public class SiloServerFrontend {
    * @param c repetition counter.
    * @return a TrackMatchResponse.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private TrackMatchResponse trackMatch(final TrackMatchRequest.Builder request, final int c){
     // If this is the 4th try, try another replica or end process, if locked.
     if(c==3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         return trackMatch(request, 0);
       }else{
         throw new StatusRuntimeException(Status.UNAVAILABLE);
       }
     }
 
+    final Connection conn = connection;
     try{
-      TrackMatchResponse res = _stub.withDeadlineAfter(2, TimeUnit.SECONDS).trackMatch(request.build());
-      List<Integer> incomingTS = res.getTimestamp().getTimestampList();
-      String cacheID = "trackMatch_" + request.getType() +"_"+request.getIdentifier();
-
-      if(updateTimestamp(incomingTS) || !cache.hasData(cacheID)){
-        // If response is up to date or is not but there is no saved information on request.
-        logger.log(Level.INFO, () -> "Added " + cacheID+ " to cache.");
-        cache.addData(cacheID, res);
-      }
-      else{
-        // If response is outdated but we have it saved in cache
-        logger.log(Level.WARNING, ()-> " Received outdated response. Current timestamp: " + _currentTimestamp +", incoming timstamp: " + incomingTS);
-        logger.log(Level.INFO, () -> "Fecthing " + cacheID + " from cache.");
-        res = (TrackMatchResponse)cache.getData(cacheID);
-      }
+      TrackMatchResponse res = conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).trackMatch(request.build());
+      Timestamp incomingTS = res.getTimestamp();
+      SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACK_MATCH, request.getType(), request.getIdentifier());
+      res = freshest(key, res, incomingTS);
 
       return res;
     } catch(final StatusRuntimeException e){
@@ -427,11 +777,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           return trackMatch(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           return trackMatch(request, c+1);
         }
       }else{
@@ -451,6 +801,10 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#track(TrackRequest.Builder, int)
    */
   public TrackResponse track(final TrackRequest.Builder request) {
+    if(shards != null)
+      return shardOf(request.getType(), request.getIdentifier()).track(request);
+    if(hedger != null)
+      return join(trackAsync(request));
     return track(request, 0);
   }
 
@@ -463,36 +817,26 @@ public class SiloServerFrontend {
    * @param c repetition counter.
    * @return a TrackResponse.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private TrackResponse track(final TrackRequest.Builder request, final int c){
     // If this is the 4th try, try another replica or end process, if locked.
     if(c==3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         return track(request, 0);
       }else{
         throw new StatusRuntimeException(Status.UNAVAILABLE);
       }
     }
 
+    final Connection conn = connection;
     try{
-      TrackResponse res = _stub.withDeadlineAfter(2, TimeUnit.SECONDS).track(request.build());
-      List<Integer> incomingTS = res.getTimestamp().getTimestampList();
-      String cacheID = "track_" + request.getType() +"_"+request.getIdentifier();
-
-      if(updateTimestamp(incomingTS)|| !cache.hasData(cacheID)){
-        // If response is up to date or is not but there is no saved information on request.
-        logger.log(Level.INFO, ()->"Added "+ cacheID +" to cache.");
-        cache.addData(cacheID, res);
-      }
-      else{
-        // If response is outdated but we have it saved in cache
-        logger.log(Level.WARNING, ()-> " Received outdated response. Current timestamp: " + _currentTimestamp +", incoming timstamp: " + incomingTS);
-        logger.log(Level.INFO, ()->"Fecthing " + cacheID + " from cache.");
-        res = (TrackResponse)cache.getData(cacheID);
-      }
+      TrackResponse res = conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).track(request.build());
+      Timestamp incomingTS = res.getTimestamp();
+      SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACK, request.getType(), request.getIdentifier());
+      res = freshest(key, res, incomingTS);
 
       return res;
     } catch(final StatusRuntimeException e){
@@ -503,11 +847,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           return track(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           return track(request, c+1);
         }
       }else{
@@ -527,6 +871,10 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#trace(TraceRequest.Builder, int)
    */
   public TraceResponse trace(final TraceRequest.Builder request) {
+    if(shards != null)
+      return shardOf(request.getType(), request.getIdentifier()).trace(request);
+    if(hedger != null)
+      return join(traceAsync(request));
     return trace(request, 0);
   }
 
@@ -539,36 +887,26 @@ public class SiloServerFrontend {
    * @param c repetition counter.
    * @return a TraceResponse.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private TraceResponse trace(final TraceRequest.Builder request, final int c){
     // If this is the 4th try, try another replica or end process, if locked.
     if(c==3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         return trace(request, 0);
       }else{
         throw new StatusRuntimeException(Status.UNAVAILABLE);
       }
     }
 
+    final Connection conn = connection;
     try{
-      TraceResponse res = _stub.withDeadlineAfter(2, TimeUnit.SECONDS).trace(request.build());
-      List<Integer> incomingTS = res.getTimestamp().getTimestampList();
-      String cacheID = "trace_" + request.getType() +"_"+request.getIdentifier();
-
-      if(updateTimestamp(incomingTS) || !cache.hasData(cacheID)){
-        // If response is up to date or is not but there is no saved information on request.
-        logger.log(Level.INFO, ()->"Added "+cacheID+" to cache.");
-        cache.addData(cacheID, res);
-      }
-      else{
-        // If response is outdated but we have it saved in cache
-        logger.log(Level.WARNING, ()-> " Received outdated response. Current timestamp: " + _currentTimestamp +", incoming timstamp: " + incomingTS);
-        logger.log(Level.INFO, ()->"Fecthing "+cacheID+" from cache.");
-        res = (TraceResponse)cache.getData(cacheID);
-      }
+      TraceResponse res = conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).trace(request.build());
+      Timestamp incomingTS = res.getTimestamp();
+      SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACE, request.getType(), request.getIdentifier());
+      res = freshest(key, res, incomingTS);
 
       return res;
     } catch(final StatusRuntimeException e){
@@ -579,11 +917,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           return trace(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           return trace(request, c+1);
         }
       }else{
@@ -595,66 +933,15 @@ public class SiloServerFrontend {
   }
 
   /**
-   * Public report access point. Hides counter logic from user.
+   * Public report access point. Hides counter logic from user. Reports from
+   * every thread are sent one at a time, in order.
    *
    * @param request a ReportRequest.Builder. Client timestamp will be added.
    *
-   * @see SiloServerFrontend#report(ReportRequest.Builder, int)
+   * @see SiloServerFrontend#reportAsync(ReportRequest.Builder)
    */
   public void report(final ReportRequest.Builder request) {
-    report(request, 0);
-  }
-
-  /**
-   * Safe recursive implementation of report. Tries 3 times or until an
-   * UNAVAILABLE code is received. Then, connects to another replica, logs in
-   * and starts over.
-   *
-   * @param request a reportRequest.Builder. Client timestamp will be added.
-   * @param c repetition counter.
-   *
-   * @see SiloServerFrontend#connectRandomCam()
-   */
-  private void report(final ReportRequest.Builder request, final int c) {
-    // If this is the 4th try, try another replica or end process, if locked.
-    if(c == 3){
-      if(!isLocked){
-        logger.warning(FAILED_3_TIMES);
-        connectRandomCam();
-        report(request, 0);
-        return;
-      }else{
-        throw new StatusRuntimeException(Status.UNAVAILABLE);
-      }
-    }
-
-    try{
-      // Create Timestamp
-			Timestamp ts = Timestamp.newBuilder().addAllTimestamp(_currentTimestamp).build();
-      ReportResponse res = _stub.withDeadlineAfter(2, TimeUnit.SECONDS).report(request.setTimestamp(ts).setClientId(sessionId).build());
-      updateTimestamp(res.getTimestamp().getTimestampList());
-
-    } catch(final StatusRuntimeException e){
-      if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
-        // Deadline, try again
-        report(request, c+1);
-      else if(e.getStatus().getCode() == Status.Code.UNAVAILABLE){
-        logger.warning(SERVER_DOWN);
-        if(!isLocked){
-          // Server down, connect to another node and restart count
-          connectRandomCam();
-          report(request, 0);
-        }else{
-          // Server down, check if target changed
-          connectLockedCam();
-          report(request, c+1);
-        }
-      }else{
-        // Unknown error, stop process
-        logger.severe(e.getMessage());
-        throw e;
-      }
-    }
+    join(reportAsync(request));
   }
 
   /**
@@ -666,6 +953,9 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#camInfo(camInfoRequest.Builder, int)
    */
   public CamInfoResponse camInfo(final CamInfoRequest.Builder request){
+    if(shards != null)
+      // Every shard holds every camera
+      return shards.get(0).camInfo(request);
     return camInfo(request, 0);
   }
 
@@ -678,27 +968,26 @@ public class SiloServerFrontend {
    * @param c repetition counter.
    * @return a CamInfoResponse.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   private CamInfoResponse camInfo(final CamInfoRequest.Builder request, final int c) {
     // If this is the 4th try, try another replica or end process, if locked.
     if(c == 3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         return camInfo(request, 0);
       }else{
         throw new StatusRuntimeException(Status.UNAVAILABLE);
       }
     }
 
+    final Connection conn = connection;
     try{
-      CamInfoResponse res =  _stub.withDeadlineAfter(2, TimeUnit.SECONDS).camInfo(request.build());
+      CamInfoResponse res =  conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).camInfo(request.build());
 
-      if(updateTimestamp(res.getTimestamp().getTimestampList()))
-        cache.addData(request.toString(), res);
-      else
-        res = (CamInfoResponse)cache.getData(request.toString());
+      SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.CAM_INFO, null, request.getName());
+      res = freshest(key, res, res.getTimestamp());
 
       return res;
 
@@ -710,11 +999,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           return camInfo(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           return camInfo(request, c+1);
         }
       }else{
@@ -733,6 +1022,14 @@ public class SiloServerFrontend {
    * @see SiloServerFrontend#camJoin(CamJoinRequest.Builder, int)
    */
   public void camJoin(final CamJoinRequest.Builder request){
+    if(shards != null){
+      List<Supplier<Void>> calls = new ArrayList<>();
+      for(SiloServerFrontend s : shards){
+        calls.add(() -> { s.camJoin(request.clone()); return null; });
+      }
+      scatter(calls);
+      return;
+    }
     camJoin(request, 0);
   }
 
@@ -744,14 +1041,14 @@ public class SiloServerFrontend {
    * @param request a CamJoinRequest.Builder. Client timestamp will be added.
    * @param c repetition counter.
    *
-   * @see SiloServerFrontend#connectRandom()
+   * @see SiloServerFrontend#connectRandom(Connection)
    */
   public void camJoin(final CamJoinRequest.Builder request, final int c) {
     // If this is the 4th try, try another replica or end process, if locked.
     if(c == 3){
       if(!isLocked){
         logger.warning(FAILED_3_TIMES);
-        connectRandom();
+        connectRandom(connection);
         camJoin(request, 0);
         return;
       }else{
@@ -759,13 +1056,15 @@ public class SiloServerFrontend {
       }
     }
 
+    final Connection conn = connection;
     try{
       // Create Timestamp
-      Timestamp ts = Timestamp.newBuilder().addAllTimestamp(_currentTimestamp).build();
-      logger.log(Level.INFO, "Current timestamp: {0}", _currentTimestamp);
-      CamJoinResponse res = _stub.withDeadlineAfter(2, TimeUnit.SECONDS).camJoin(request.setTimestamp(ts).build());
+      Timestamp ts = _currentTimestamp.get().toProto();
+      logger.log(Level.INFO, "Current timestamp: {0}", _currentTimestamp.get());
+      CamJoinResponse res = conn.stub.withDeadlineAfter(2, TimeUnit.SECONDS).camJoin(request.setTimestamp(ts).build());
       sessionId = res.getClientId();
-      updateTimestamp(res.getTimestamp().getTimestampList());
+      loggedIn = conn;
+      updateTimestamp(res.getTimestamp());
 
     } catch(final StatusRuntimeException e){
       if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
@@ -775,11 +1074,11 @@ public class SiloServerFrontend {
         logger.warning(SERVER_DOWN);
         if(!isLocked){
           // Server down, connect to another node and restart count
-          connectRandom();
+          connectRandom(conn);
           camJoin(request, 0);
         }else{
           // Server down, check if target changed
-          connectLocked();
+          connectLocked(conn);
           camJoin(request, c+1);
         }
       }else{
@@ -790,31 +1089,498 @@ public class SiloServerFrontend {
     }
   }
 
+  /**
+   * Connects to another replica after a failure, or to the locked one again.
+   *
+   * @param login whether to log in with the saved camera once connected.
+   * @param failed the connection the call failed on.
+   */
+  private void failover(final boolean login, final Connection failed){
+    if(!isLocked){
+      if(login)
+        connectRandomCam(failed);
+      else
+        connectRandom(failed);
+    }else{
+      if(login)
+        connectLockedCam(failed);
+      else
+        connectLocked(failed);
+    }
+  }
+
+  /**
+   * Fails over on another thread, as it looks replicas up, pings them and may log in
+   * again, then sends the call again. The call keeps its context, so that a hedged
+   * read can still be cancelled.
+   *
+   * @param failed the connection the call failed on.
+   * @see SiloServerFrontend#callAsync(BiConsumer, boolean, CompletableFuture, int)
+   */
+  private <T> void failoverAsync(final BiConsumer<SiloGrpc.SiloStub, StreamObserver<T>> call, final boolean login,
+      final CompletableFuture<T> result, final int c, final Connection failed){
+    try{
+      failoverExecutor.execute(Context.current().wrap(() -> {
+        try{
+          failover(login, failed);
+        }catch(final RuntimeException e){
+          result.completeExceptionally(e);
+          return;
+        }
+        callAsync(call, login, result, c);
+      }));
+    }catch(final RejectedExecutionException e){
+      result.completeExceptionally(Status.CANCELLED.withDescription("Frontend shut down").asRuntimeException());
+    }
+  }
+
+  /**
+   * Safe asynchronous implementation of a call. Tries 3 times or until an
+   * UNAVAILABLE code is received. Then, connects to another replica and
+   * starts over. Retries are sent from the gRPC callbacks, so no thread
+   * waits for a reply; failing over, which does, is left to another thread.
+   *
+   * @param call sends a request through a stub. Builds it when called, so
+   *             that each retry carries the current timestamp and session.
+   * @param login whether to log in with the saved camera when connecting to another replica.
+   * @param result completed with the response, or with the error that stopped the call.
+   * @param c repetition counter.
+   */
+  private <T> void callAsync(final BiConsumer<SiloGrpc.SiloStub, StreamObserver<T>> call, final boolean login,
+      final CompletableFuture<T> result, final int c){
+    try{
+      // If this is the 4th try, try another replica or end call, if locked.
+      if(c == 3){
+        if(!isLocked){
+          logger.warning(FAILED_3_TIMES);
+          failoverAsync(call, login, result, 0, connection);
+        }else{
+          result.completeExceptionally(new StatusRuntimeException(Status.UNAVAILABLE));
+        }
+        return;
+      }
+
+      final Connection conn = connection;
+      call.accept(conn.asyncStub.withDeadlineAfter(2, TimeUnit.SECONDS), new StreamObserver<T>(){
+        @Override
+        public void onNext(final T res){
+          result.complete(res);
+        }
+
+        @Override
+        public void onError(final Throwable t){
+          final Status status = Status.fromThrowable(t);
+          try{
+            if(status.getCode() == Status.Code.DEADLINE_EXCEEDED)
+              // Deadline, try again
+              callAsync(call, login, result, c+1);
+            else if(status.getCode() == Status.Code.UNAVAILABLE){
+              logger.warning(SERVER_DOWN);
+              // Server down, connect to another node and restart count, or check if locked target changed
+              failoverAsync(call, login, result, isLocked ? c+1 : 0, conn);
+            }else if(status.getCode() == Status.Code.CANCELLED){
+              // Another replica answered first
+              result.completeExceptionally(status.asRuntimeException());
+            }else{
+              // Unknown error, stop call
+              logger.severe(status.toString());
+              result.completeExceptionally(status.asRuntimeException());
+            }
+          }catch(final RuntimeException e){
+            result.completeExceptionally(e);
+          }
+        }
+
+        @Override
+        public void onCompleted(){
+          // Unary calls complete on their response
+        }
+      });
+    }catch(final RuntimeException e){
+      result.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Sends a read, hedged if reads are hedged.
+   *
+   * @param call sends the read through a stub.
+   * @param timestamp the timestamp of an answer.
+   * @return the future answer.
+   */
+  private <T> CompletableFuture<T> read(final BiConsumer<SiloGrpc.SiloStub, StreamObserver<T>> call, final Function<T, Timestamp> timestamp){
+    if(hedger != null)
+      return hedged(call, timestamp);
+    final CompletableFuture<T> res = new CompletableFuture<>();
+    callAsync(call, false, res, 0);
+    return res;
+  }
+
+  /**
+   * Read sent to up to two replicas. The first answer at least as recent as the
+   * client's timestamp wins. If none is, the most recent one wins once all are in.
+   */
+  private final class HedgedRead<T> {
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final Function<T, Timestamp> timestamp;
+    // Calls in flight, most recent outdated answer and last error
+    private int pending;
+    private T outdated;
+    private Throwable error;
+
+    private HedgedRead(final Function<T, Timestamp> timestamp){
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * @return whether the read is still unanswered, counting one more call if so.
+     */
+    private synchronized boolean send(){
+      if(result.isDone())
+        return false;
+      pending++;
+      return true;
+    }
+
+    /**
+     * Records the answer of one of the calls, or the error it failed with.
+     */
+    private void answer(final T res, final Throwable t){
+      T winner = null;
+      Throwable failure = null;
+      synchronized(this){
+        pending--;
+        if(t == null && isRecent(timestamp.apply(res))){
+          winner = res;
+        }else{
+          if(t != null)
+            error = t;
+          else if(outdated == null || new VectorClock(timestamp.apply(res)).compare(timestamp.apply(outdated)) == VectorClock.Order.AFTER)
+            outdated = res;
+          if(pending == 0){
+            winner = outdated;
+            failure = error;
+          }
+        }
+      }
+      if(winner != null)
+        result.complete(winner);
+      else if(failure != null)
+        result.completeExceptionally(failure);
+    }
+  }
+
+  /**
+   * @return whether a timestamp is at least the client's.
+   */
+  private boolean isRecent(final Timestamp timestamp){
+    final VectorClock.Order order = _currentTimestamp.get().compare(timestamp);
+    return order == VectorClock.Order.BEFORE || order == VectorClock.Order.EQUAL;
+  }
+
+  /**
+   * Hedged read. Sends a read to the replica connected to, with the usual retries,
+   * and, if it is still unanswered after the configured percentile of read latency,
+   * to a second replica as well. The call that loses is cancelled.
+   *
+   * @param call sends the read through a stub.
+   * @param timestamp the timestamp of an answer.
+   * @return the future answer.
+   *
+   * @see SiloServerFrontend#hedge(HedgedRead, BiConsumer)
+   */
+  private <T> CompletableFuture<T> hedged(final BiConsumer<SiloGrpc.SiloStub, StreamObserver<T>> call, final Function<T, Timestamp> timestamp){
+    final HedgedRead<T> read = new HedgedRead<>(timestamp);
+    read.send();
+    final long start = System.nanoTime();
+    final CompletableFuture<T> first = new CompletableFuture<>();
+    first.whenComplete((res, t) -> {
+      if(t == null)
+        readLatency.record(System.nanoTime() - start);
+      read.answer(res, t);
+    });
+    // Retries are sent from the callbacks, within the same context, so cancelling it stops them too
+    final Context.CancellableContext context = Context.current().withCancellation();
+    read.result.whenComplete((res, t) -> context.cancel(null));
+    context.run(() -> callAsync(call, false, first, 0));
+
+    final long delay = readLatency.percentile(hedgePercentile, HEDGE_MIN_READS);
+    if(delay >= 0 && !read.result.isDone()){
+      hedger.schedule(() -> hedge(read, call), delay, TimeUnit.NANOSECONDS);
+    }
+    return read.result;
+  }
+
+  /**
+   * Sends a read that is still unanswered to the second replica, once.
+   */
+  private <T> void hedge(final HedgedRead<T> read, final BiConsumer<SiloGrpc.SiloStub, StreamObserver<T>> call){
+    if(read.result.isDone())
+      return;
+    final Connection conn;
+    try{
+      conn = hedgeConnection();
+    }catch(final ZKNamingException | RuntimeException e){
+      logger.log(Level.WARNING, "Could not hedge read: {0}", e.getMessage());
+      return;
+    }
+    if(conn == null || !read.send())
+      return;
+    logger.log(Level.INFO, "Hedging read to {0}", conn.path);
+    final long start = System.nanoTime();
+    final Context.CancellableContext context = Context.current().withCancellation();
+    read.result.whenComplete((res, t) -> context.cancel(null));
+    context.run(() -> call.accept(conn.asyncStub.withDeadlineAfter(2, TimeUnit.SECONDS), new StreamObserver<T>(){
+      @Override
+      public void onNext(final T res){
+        readLatency.record(System.nanoTime() - start);
+        read.answer(res, null);
+      }
+
+      @Override
+      public void onError(final Throwable t){
+        if(Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE)
+          dropHedgeConnection(conn);
+        read.answer(null, t);
+      }
+
+      @Override
+      public void onCompleted(){
+        // Unary calls complete on their response
+      }
+    }));
+  }
+
+  /**
+   * @return a connection to a replica other than the one connected to, picked as
+   *         when failing over, or null if there is no other.
+   * @throws ZKNamingException if the replicas cannot be listed.
+   */
+  private Connection hedgeConnection() throws ZKNamingException{
+    synchronized(hedgeLock){
+      final Connection current = connection;
+      if(hedgeConnection != null && !hedgeConnection.path.equals(current.path))
+        return hedgeConnection;
+      if(hedgeConnection != null){
+        // Now the replica connected to
+        hedgeConnection.channel.shutdown();
+        hedgeConnection = null;
+      }
+      final List<ZKRecord> others = new ArrayList<>(zkNaming.listRecords(basePath));
+      others.removeIf(record -> record.getPath().equals(current.path));
+      if(!others.isEmpty())
+        hedgeConnection = choose(others);
+      return hedgeConnection;
+    }
+  }
+
+  /**
+   * Closes the connection to the second replica, if it is still the given one.
+   */
+  private void dropHedgeConnection(final Connection conn){
+    synchronized(hedgeLock){
+      if(hedgeConnection == conn){
+        conn.channel.shutdown();
+        hedgeConnection = null;
+      }
+    }
+  }
+
+  /**
+   * Asynchronous trackMatch. Completes with a TrackMatchResponse, or with the
+   * StatusRuntimeException that stopped it.
+   *
+   * @param request a TrackMatchRequest.Builder.
+   * @return the future response.
+   *
+   * @see SiloServerFrontend#trackMatch(TrackMatchRequest.Builder)
+   */
+  public CompletableFuture<TrackMatchResponse> trackMatchAsync(final TrackMatchRequest.Builder request){
+    if(shards != null){
+      // Any shard may hold matching objects. Their timestamps are unrelated, so none is returned
+      final List<CompletableFuture<TrackMatchResponse>> parts = new ArrayList<>();
+      for(SiloServerFrontend s : shards){
+        parts.add(s.trackMatchAsync(request.clone()));
+      }
+      return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenApply(v -> {
+        TrackMatchResponse.Builder res = TrackMatchResponse.newBuilder();
+        for(CompletableFuture<TrackMatchResponse> part : parts){
+          res.addAllObservation(part.join().getObservationList());
+        }
+        return res.build();
+      });
+    }
+    final SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACK_MATCH, request.getType(), request.getIdentifier());
+    return read((stub, observer) -> stub.trackMatch(request.build(), observer), TrackMatchResponse::getTimestamp)
+        .thenApply(r -> freshest(key, r, r.getTimestamp()));
+  }
+
+  /**
+   * Asynchronous track. Completes with a TrackResponse, or with the
+   * StatusRuntimeException that stopped it.
+   *
+   * @param request a TrackRequest.Builder.
+   * @return the future response.
+   *
+   * @see SiloServerFrontend#track(TrackRequest.Builder)
+   */
+  public CompletableFuture<TrackResponse> trackAsync(final TrackRequest.Builder request){
+    if(shards != null)
+      return shardOf(request.getType(), request.getIdentifier()).trackAsync(request);
+    final SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACK, request.getType(), request.getIdentifier());
+    return read((stub, observer) -> stub.track(request.build(), observer), TrackResponse::getTimestamp)
+        .thenApply(r -> freshest(key, r, r.getTimestamp()));
+  }
+
+  /**
+   * Asynchronous trace. Completes with a TraceResponse, or with the
+   * StatusRuntimeException that stopped it.
+   *
+   * @param request a TraceRequest.Builder.
+   * @return the future response.
+   *
+   * @see SiloServerFrontend#trace(TraceRequest.Builder)
+   */
+  public CompletableFuture<TraceResponse> traceAsync(final TraceRequest.Builder request){
+    if(shards != null)
+      return shardOf(request.getType(), request.getIdentifier()).traceAsync(request);
+    final SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.TRACE, request.getType(), request.getIdentifier());
+    return read((stub, observer) -> stub.trace(request.build(), observer), TraceResponse::getTimestamp)
+        .thenApply(r -> freshest(key, r, r.getTimestamp()));
+  }
+
+  /**
+   * Asynchronous report. Completes once the replica accepted the report, or
+   * with the StatusRuntimeException that stopped it. Reports are sent one at
+   * a time, in order, each with the timestamp returned for the previous one.
+   *
+   * @param request a ReportRequest.Builder. Client timestamp and session will be added.
+   * @return the future completion.
+   *
+   * @see SiloServerFrontend#report(ReportRequest.Builder)
+   */
+  public CompletableFuture<Void> reportAsync(final ReportRequest.Builder request){
+    if(shards != null){
+      // Each shard is sent the observations of the objects it holds
+      Map<Integer, ReportRequest.Builder> parts = new TreeMap<>();
+      for(Observation o : request.getObservationsList()){
+        parts.computeIfAbsent(Shards.of(o.getType(), o.getIdentifier(), shards.size()),
+            i -> request.clone().clearObservations()).addObservations(o);
+      }
+      final List<CompletableFuture<Void>> calls = new ArrayList<>();
+      parts.forEach((i, part) -> calls.add(shards.get(i).reportAsync(part)));
+      return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new));
+    }
+    synchronized(this){
+      lastReport = lastReport.handle((v, t) -> null).thenCompose(v -> {
+        final CompletableFuture<ReportResponse> res = new CompletableFuture<>();
+        callAsync((stub, observer) -> stub.report(request.setTimestamp(_currentTimestamp.get().toProto()).setClientId(sessionId).build(), observer),
+            true, res, 0);
+        return res.thenAccept(r -> updateTimestamp(r.getTimestamp()));
+      });
+      return lastReport;
+    }
+  }
+
+  /**
+   * Asynchronous camInfo. Completes with a CamInfoResponse, or with the
+   * StatusRuntimeException that stopped it.
+   *
+   * @param request a CamInfoRequest.Builder.
+   * @return the future response.
+   *
+   * @see SiloServerFrontend#camInfo(CamInfoRequest.Builder)
+   */
+  public CompletableFuture<CamInfoResponse> camInfoAsync(final CamInfoRequest.Builder request){
+    if(shards != null)
+      // Every shard holds every camera
+      return shards.get(0).camInfoAsync(request);
+    final SiloFrontendCache.Key key = new SiloFrontendCache.Key(SiloFrontendCache.Operation.CAM_INFO, null, request.getName());
+    final CompletableFuture<CamInfoResponse> res = new CompletableFuture<>();
+    callAsync((stub, observer) -> stub.camInfo(request.build(), observer), false, res, 0);
+    return res.thenApply(r -> freshest(key, r, r.getTimestamp()));
+  }
+
   /**
    * Shutdown frontend. Clears channel and closes logger handlers.
    */
   public void shutdown() {
-    _channel.shutdownNow();
-    for(final Handler h:logger.getHandlers()){
-      h.close();
+    if(shards != null){
+      for(SiloServerFrontend s : shards){
+        s.shutdown();
+      }
+      shardExecutor.shutdownNow();
+    }else{
+      connection.channel.shutdownNow();
+    }
+    if(rebalancer != null){
+      rebalancer.shutdownNow();
+    }
+    failoverExecutor.shutdownNow();
+    if(hedger != null){
+      hedger.shutdownNow();
+      synchronized(hedgeLock){
+        if(hedgeConnection != null)
+          hedgeConnection.channel.shutdownNow();
+      }
+    }
+    if(logHandler != null){
+      logger.removeHandler(logHandler);
+      logHandler.close();
     }
   }
 
   /**
-   * Updates client timestamp with a received timestamp.
+   * Updates client timestamp with a received timestamp. Merges into a copy,
+   * replaced atomically, retrying if another thread replaced it first.
    *
    * @param newTimestamp received timestamp.
    * @return true if newTimestamp >= currentTimestamp. False otherwise
    */
-  private Boolean updateTimestamp(final List<Integer> newTimestamp){
-    logger.log(Level.INFO, ()-> "Comparing current timestamp " + _currentTimestamp + "with " + newTimestamp);
-    Boolean isPosterior = true;
-    for (int i = 0; i < newTimestamp.size(); i++) {
-      if (newTimestamp.get(i) >= _currentTimestamp.get(i))
-        _currentTimestamp.set(i, newTimestamp.get(i));
-      else
-        isPosterior = false;
+  private boolean updateTimestamp(final Timestamp newTimestamp){
+    while(true){
+      final VectorClock current = _currentTimestamp.get();
+      logger.log(Level.INFO, ()-> "Comparing current timestamp " + current + "with " + newTimestamp.getTimestampList());
+      final VectorClock.Order order = current.compare(newTimestamp);
+      final VectorClock merged = new VectorClock(current);
+      if(merged.merge(newTimestamp)){
+        // Cached before it is shared
+        merged.toProto();
+        if(!_currentTimestamp.compareAndSet(current, merged))
+          continue;
+      }
+      return order == VectorClock.Order.BEFORE || order == VectorClock.Order.EQUAL;
+    }
+  }
+
+  /**
+   * Picks the freshest answer to a query, between a replica's response and the cached one.
+   * An outdated response is replaced by the cached one if this was produced at a later
+   * or equal timestamp; otherwise the response is kept, and cached.
+   *
+   * @param key the query.
+   * @param res the replica's response.
+   * @param incomingTS the replica's timestamp.
+   * @return the freshest answer.
+   */
+  private <T extends Message> T freshest(final SiloFrontendCache.Key key, final T res, final Timestamp incomingTS){
+    if(!updateTimestamp(incomingTS)){
+      logger.log(Level.WARNING, ()-> " Received outdated response. Current timestamp: " + _currentTimestamp.get() +", incoming timstamp: " + incomingTS.getTimestampList());
+      final T cached = cache.get(key, incomingTS);
+      if(cached != null){
+        logger.log(Level.INFO, ()-> "Fetching " + key + " from cache.");
+        return cached;
+      }
     }
-    return isPosterior;
+    logger.log(Level.INFO, ()-> "Added " + key + " to cache.");
+    cache.put(key, res, incomingTS);
+    return res;
+  }
+
+  /**
+   * @return the cache of query responses, with its hit and miss counts.
+   */
+  public SiloFrontendCache getCache(){
+    return cache;
   }
-}
\ No newline at end of file
+}
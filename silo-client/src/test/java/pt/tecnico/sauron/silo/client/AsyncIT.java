@@ -0,0 +1,121 @@
+package pt.tecnico.sauron.silo.client;
+
+import static io.grpc.Status.INVALID_ARGUMENT;
+import io.grpc.StatusRuntimeException;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.google.protobuf.util.Timestamps;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.CamInfoRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.CamInfoResponse;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Camera;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.CompleteObservation;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Coordinates;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.InitRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Observation;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ReportRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TraceRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TraceResponse;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackMatchRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackMatchResponse;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackResponse;
+
+public class AsyncIT extends BaseIT {
+
+  private static final int IN_FLIGHT = 100;
+  private static final Coordinates COORDS = Coordinates.newBuilder().setLatitude(1).setLongitude(2).build();
+  private static final Camera CAM = Camera.newBuilder().setName("asyncCam").setCoordinates(COORDS).build();
+  private static final Observation PERSON = Observation.newBuilder().setType(ObjectType.PERSON).setIdentifier("10")
+      .setTimestamp(Timestamps.fromMillis(System.currentTimeMillis())).build();
+
+  private static SiloServerFrontend frontend;
+
+  // one-time initialization and clean-up
+
+  @BeforeAll
+  public static void oneTimeSetUp() {
+    try{
+      frontend = new SiloServerFrontend(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"));
+    } catch (IOException e){
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  @AfterAll
+  public static void oneTimeTearDown() {
+    frontend.shutdown();
+  }
+
+  // initialization and clean-up for each test
+
+  @BeforeEach
+  public void setUp() {
+    frontend.ctrlInit(InitRequest.newBuilder()
+        .setData(CompleteObservation.newBuilder().setCam(CAM).setObservation(PERSON).build()).build());
+  }
+
+  @AfterEach
+  public void tearDown() {
+    frontend.ctrlClear();
+  }
+
+  // tests
+
+  @Test
+  public void trackAsyncOK() {
+    List<CompletableFuture<TrackResponse>> responses = new ArrayList<>();
+    for(int i = 0; i < IN_FLIGHT; i++){
+      responses.add(frontend.trackAsync(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("10")));
+    }
+    for(CompletableFuture<TrackResponse> response : responses){
+      assertEquals(PERSON, response.join().getObservation(0).getObservation());
+    }
+  }
+
+  @Test
+  public void trackMatchAsyncOK() {
+    TrackMatchResponse response = frontend.trackMatchAsync(TrackMatchRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("1.*")).join();
+    assertEquals(1, response.getObservationCount());
+    assertEquals(PERSON, response.getObservation(0).getObservation());
+  }
+
+  @Test
+  public void reportAsyncOK() {
+    List<CompletableFuture<Void>> reports = new ArrayList<>();
+    for(int i = 0; i < IN_FLIGHT; i++){
+      reports.add(frontend.reportAsync(ReportRequest.newBuilder().setName(CAM.getName())
+          .addObservations(Observation.newBuilder().setType(ObjectType.PERSON).setIdentifier("20"))));
+    }
+    CompletableFuture.allOf(reports.toArray(CompletableFuture[]::new)).join();
+
+    TraceResponse response = frontend.traceAsync(TraceRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("20")).join();
+    assertEquals(IN_FLIGHT, response.getObservationCount());
+  }
+
+  @Test
+  public void camInfoAsyncOK() {
+    CamInfoResponse response = frontend.camInfoAsync(CamInfoRequest.newBuilder().setName(CAM.getName())).join();
+    assertEquals(COORDS, response.getCoordinates());
+  }
+
+  @Test
+  public void reportAsyncNOK_wrongPersonId() {
+    CompletableFuture<Void> report = frontend.reportAsync(ReportRequest.newBuilder().setName(CAM.getName())
+        .addObservations(Observation.newBuilder().setType(ObjectType.PERSON).setIdentifier("123aaa")));
+
+    CompletionException e = assertThrows(CompletionException.class, report::join);
+    assertEquals(INVALID_ARGUMENT.getCode(), ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+  }
+}
@@ -0,0 +1,163 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.Context;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import pt.tecnico.sauron.silo.grpc.SiloGrpc;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.PingRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.PingResponse;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackResponse;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+
+/**
+ * Replicas run in this process and registered under a path of their own, apart from the
+ * real ones. They answer pings and tracks after a delay that can be changed at any time,
+ * always or only now and then, and count the tracks they received and those cancelled
+ * before they answered.
+ */
+class DelayedReplicas implements AutoCloseable {
+
+  // Milliseconds between checks for cancellation while delaying
+  private static final long STEP = 5;
+
+  private final ZKNaming zkNaming;
+  private final String path;
+  private final List<Server> servers = new ArrayList<>();
+  private final List<Replica> replicas = new ArrayList<>();
+
+  /**
+   * Replica that answers pings and tracks after a delay, unless cancelled meanwhile.
+   */
+  private static class Replica extends SiloGrpc.SiloImplBase {
+    private volatile long delay;
+    private volatile double share = 1;
+    private final AtomicInteger tracks = new AtomicInteger();
+    private final AtomicInteger cancelled = new AtomicInteger();
+
+    /**
+     * @return if the call is still wanted once the delay is over.
+     */
+    private boolean sleep() {
+      long delay = ThreadLocalRandom.current().nextDouble() < share ? this.delay : 0;
+      long end = System.nanoTime() + delay * 1000000;
+      try {
+        for (long left = delay; left > 0; left = (end - System.nanoTime()) / 1000000) {
+          if (Context.current().isCancelled()) {
+            return false;
+          }
+          Thread.sleep(Math.min(left, STEP));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      return !Context.current().isCancelled();
+    }
+
+    @Override
+    public void ctrlPing(PingRequest request, StreamObserver<PingResponse> responseObserver) {
+      if (sleep()) {
+        responseObserver.onNext(PingResponse.newBuilder().setMessage("Hello " + request.getMessage() + "!").build());
+        responseObserver.onCompleted();
+      }
+    }
+
+    @Override
+    public void track(TrackRequest request, StreamObserver<TrackResponse> responseObserver) {
+      tracks.incrementAndGet();
+      if (!sleep()) {
+        cancelled.incrementAndGet();
+        return;
+      }
+      responseObserver.onNext(TrackResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+  }
+
+  /**
+   * Starts the replicas and registers them, numbered from 1.
+   *
+   * @param zkNaming naming service to register the replicas in.
+   * @param path path to register them under.
+   * @param delays initial delay of each replica, in milliseconds.
+   */
+  DelayedReplicas(ZKNaming zkNaming, String path, long... delays) throws IOException, ZKNamingException {
+    this.zkNaming = zkNaming;
+    this.path = path;
+    for (int i = 0; i < delays.length; i++) {
+      Replica replica = new Replica();
+      replica.delay = delays[i];
+      replicas.add(replica);
+      Server server = ServerBuilder.forPort(0).addService(replica).build().start();
+      servers.add(server);
+      zkNaming.rebind(path + "/" + (i + 1), "localhost", String.valueOf(server.getPort()));
+    }
+  }
+
+  /**
+   * @param replica index of the replica, from 0.
+   * @param delay new delay, in milliseconds.
+   */
+  void setDelay(int replica, long delay) {
+    setDelay(replica, delay, 1);
+  }
+
+  /**
+   * @param replica index of the replica, from 0.
+   * @param delay new delay, in milliseconds.
+   * @param share share of the calls that are delayed, picked at random.
+   */
+  void setDelay(int replica, long delay, double share) {
+    replicas.get(replica).delay = delay;
+    replicas.get(replica).share = share;
+  }
+
+  /**
+   * @return the tracks a replica received since the last reset.
+   */
+  int tracks(int replica) {
+    return replicas.get(replica).tracks.get();
+  }
+
+  /**
+   * @return the tracks a replica received since the last reset, and did not answer as they were cancelled.
+   */
+  int cancelled(int replica) {
+    return replicas.get(replica).cancelled.get();
+  }
+
+  /**
+   * Sets every count back to 0.
+   */
+  void reset() {
+    for (Replica r : replicas) {
+      r.tracks.set(0);
+      r.cancelled.set(0);
+    }
+  }
+
+  int size() {
+    return replicas.size();
+  }
+
+  /**
+   * Unregisters and stops the replicas.
+   */
+  @Override
+  public void close() throws ZKNamingException {
+    for (int i = 0; i < servers.size(); i++) {
+      zkNaming.unbind(path + "/" + (i + 1), "localhost", String.valueOf(servers.get(i).getPort()));
+      servers.get(i).shutdownNow();
+    }
+  }
+}
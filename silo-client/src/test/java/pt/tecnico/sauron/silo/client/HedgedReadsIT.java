@@ -0,0 +1,98 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackRequest;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+
+/**
+ * Checks that a track the replica connected to is slow to answer is also sent to the
+ * other one, and that the slow call is cancelled once the other one answers, against
+ * in-process replicas.
+ */
+public class HedgedReadsIT extends BaseIT {
+
+  // Path the in-process replicas are registered under, apart from the real ones
+  private static final String PATH = "/grpc/sauron/hedging";
+  // Reads to time before hedging, more than the frontend needs
+  private static final int WARMUP = 50;
+  // Reads to find the replica connected to, which gets all of them, and the other only the few hedged
+  private static final int PROBES = 10;
+  // Delay of the slow replica, in milliseconds, within the frontend's deadline
+  private static final long SLOW = 1500;
+  // Milliseconds for the cancellation to reach the slow replica
+  private static final long CANCEL_WAIT = 1000;
+
+  private static ZKNaming zkNaming;
+  private static DelayedReplicas replicas;
+  private SiloServerFrontend frontend;
+
+  // one-time initialization and clean-up
+
+  @BeforeAll
+  public static void oneTimeSetUp() throws IOException, ZKNamingException {
+    zkNaming = new ZKNaming(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"));
+    replicas = new DelayedReplicas(zkNaming, PATH, 0, 0);
+    // Stays on the replica it connected to
+    System.setProperty("sauron.selection", "random");
+    System.setProperty("sauron.hedge", "90");
+  }
+
+  @AfterAll
+  public static void oneTimeTearDown() throws ZKNamingException {
+    replicas.close();
+    System.clearProperty("sauron.selection");
+    System.clearProperty("sauron.hedge");
+  }
+
+  // initialization and clean-up for each test
+
+  @BeforeEach
+  public void setUp() {
+    frontend = new SiloServerFrontend(zkNaming, PATH);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    frontend.shutdown();
+    for (int i = 0; i < replicas.size(); i++) {
+      replicas.setDelay(i, 0);
+    }
+  }
+
+  private void track() {
+    frontend.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("1"));
+  }
+
+  // tests
+
+  @Test
+  public void slowReadIsHedgedAndLoserCancelled() throws Exception {
+    for (int i = 0; i < WARMUP; i++) {
+      track();
+    }
+    replicas.reset();
+    for (int i = 0; i < PROBES; i++) {
+      track();
+    }
+    int connected = replicas.tracks(0) > replicas.tracks(1) ? 0 : 1;
+    int other = 1 - connected;
+
+    replicas.setDelay(connected, SLOW);
+    replicas.reset();
+    track();
+    assertEquals(1, replicas.tracks(connected));
+    assertEquals(1, replicas.tracks(other), "the read should be hedged to the other replica");
+
+    long end = System.currentTimeMillis() + CANCEL_WAIT;
+    while (replicas.cancelled(connected) == 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, replicas.cancelled(connected), "the slow read should be cancelled");
+  }
+}
@@ -0,0 +1,95 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackRequest;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+
+/**
+ * Checks that a frontend that picks replicas by latency ends up on the fast one, against
+ * in-process replicas, two of them slow, and moves when another one becomes the fast one.
+ */
+public class ReplicaSelectionIT extends BaseIT {
+
+  // Path the in-process replicas are registered under, apart from the real ones
+  private static final String PATH = "/grpc/sauron/selection";
+  // Delays, in milliseconds
+  private static final long FAST = 0;
+  private static final long SLOW = 50;
+  // Milliseconds for the frontend to re-evaluate its replica a few times
+  private static final long SETTLE = 1000;
+  private static final int CALLS = 20;
+
+  private static ZKNaming zkNaming;
+  private static DelayedReplicas replicas;
+  private SiloServerFrontend frontend;
+
+  // one-time initialization and clean-up
+
+  @BeforeAll
+  public static void oneTimeSetUp() throws IOException, ZKNamingException {
+    zkNaming = new ZKNaming(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"));
+    replicas = new DelayedReplicas(zkNaming, PATH, FAST, SLOW, SLOW);
+    System.setProperty("sauron.selection.interval", "20");
+  }
+
+  @AfterAll
+  public static void oneTimeTearDown() throws ZKNamingException {
+    replicas.close();
+    System.clearProperty("sauron.selection.interval");
+  }
+
+  // initialization and clean-up for each test
+
+  @BeforeEach
+  public void setUp() {
+    frontend = new SiloServerFrontend(zkNaming, PATH);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    frontend.shutdown();
+    for (int i = 0; i < replicas.size(); i++) {
+      replicas.setDelay(i, i == 0 ? FAST : SLOW);
+    }
+  }
+
+  /**
+   * Waits for the frontend to settle, then tracks an object a few times.
+   *
+   * @return the replica every track went to, or -1 if they went to several.
+   */
+  private int settledReplica() throws InterruptedException {
+    Thread.sleep(SETTLE);
+    replicas.reset();
+    for (int i = 0; i < CALLS; i++) {
+      frontend.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("1"));
+    }
+    for (int i = 0; i < replicas.size(); i++) {
+      if (replicas.tracks(i) == CALLS) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // tests
+
+  @Test
+  public void settlesOnFastReplica() throws Exception {
+    assertEquals(0, settledReplica());
+  }
+
+  @Test
+  public void movesWhenAnotherReplicaBecomesFast() throws Exception {
+    assertEquals(0, settledReplica());
+    replicas.setDelay(0, SLOW);
+    replicas.setDelay(2, FAST);
+    assertEquals(2, settledReplica());
+  }
+}
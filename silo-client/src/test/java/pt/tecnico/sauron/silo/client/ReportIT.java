@@ -37,7 +37,7 @@ public class ReportIT extends BaseIT {
   @BeforeAll
   public static void oneTimeSetUp() {
     try{
-      frontend = new SiloServerFrontend(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"), 1);
+      frontend = new SiloServerFrontend(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"));
     } catch (IOException e){
       System.err.println(e.getMessage());
       System.exit(1);
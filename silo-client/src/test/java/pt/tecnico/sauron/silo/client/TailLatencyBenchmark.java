@@ -0,0 +1,103 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.TrackRequest;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+
+/**
+ * Measures the 99th percentile latency of tracks against in-process replicas. First with
+ * frontends that pick replicas at random and by latency, two of three replicas being slow,
+ * along with the share of tracks sent to the fast one. Then with and without hedged reads,
+ * the replicas being slow now and then, along with the share of tracks that were hedged.
+ * Replicas register in ZooKeeper, under paths of their own.
+ *
+ * Usage: TailLatencyBenchmark zooHost zooPort
+ */
+public class TailLatencyBenchmark {
+  private static final String SELECTION_PATH = "/grpc/sauron/bench-selection";
+  private static final String HEDGING_PATH = "/grpc/sauron/bench-hedging";
+  private static final int FRONTENDS = 8;
+  private static final int CALLS = 400;
+  // Delay of the slow replicas, and of the occasional slow answers, in milliseconds
+  private static final long SLOW = 50;
+  private static final long SPIKE = 200;
+  // Share of slow answers
+  private static final double SPIKES = 0.05;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.printf("Usage: java %s zooHost zooPort%n", TailLatencyBenchmark.class.getName());
+      return;
+    }
+    final ZKNaming zk = new ZKNaming(args[0], args[1]);
+    Logger.getLogger("").setLevel(Level.WARNING);
+
+    System.out.println("frontends mode p99ms share%");
+    try (DelayedReplicas replicas = new DelayedReplicas(zk, SELECTION_PATH, 0, SLOW, SLOW)) {
+      System.setProperty("sauron.selection.interval", "20");
+      for (String selection : new String[] { "random", "latency" }) {
+        System.setProperty("sauron.selection", selection);
+        replicas.reset();
+        double p99 = p99(zk, SELECTION_PATH, FRONTENDS);
+        double fast = 100.0 * replicas.tracks(0) / (FRONTENDS * CALLS);
+        System.out.printf("%9d %s %.1f %.1f%n", FRONTENDS, selection, p99, fast);
+      }
+      System.clearProperty("sauron.selection.interval");
+    }
+
+    try (DelayedReplicas replicas = new DelayedReplicas(zk, HEDGING_PATH, 0, 0)) {
+      System.setProperty("sauron.selection", "random");
+      for (int i = 0; i < replicas.size(); i++) {
+        replicas.setDelay(i, SPIKE, SPIKES);
+      }
+      for (int hedge : new int[] { 0, 90 }) {
+        System.setProperty("sauron.hedge", String.valueOf(hedge));
+        replicas.reset();
+        double p99 = p99(zk, HEDGING_PATH, 1);
+        double hedged = 100.0 * (replicas.tracks(0) + replicas.tracks(1) - CALLS) / CALLS;
+        System.out.printf("%9d hedge=%d %.1f %.1f%n", 1, hedge, p99, hedged);
+      }
+      System.clearProperty("sauron.hedge");
+      System.clearProperty("sauron.selection");
+    }
+  }
+
+  /**
+   * Runs several frontends at once, each tracking an object repeatedly.
+   *
+   * @return the 99th percentile of the call latencies, in milliseconds.
+   */
+  private static double p99(ZKNaming zk, String path, int frontends) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(frontends);
+    List<Future<List<Long>>> runs = new ArrayList<>();
+    for (int f = 0; f < frontends; f++) {
+      runs.add(pool.submit(() -> {
+        SiloServerFrontend frontend = new SiloServerFrontend(zk, path);
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+          long start = System.nanoTime();
+          frontend.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("1"));
+          latencies.add(System.nanoTime() - start);
+        }
+        frontend.shutdown();
+        return latencies;
+      }));
+    }
+    List<Long> latencies = new ArrayList<>();
+    for (Future<List<Long>> run : runs) {
+      latencies.addAll(run.get());
+    }
+    pool.shutdown();
+    Collections.sort(latencies);
+    return latencies.get(latencies.size() * 99 / 100) / 1e6;
+  }
+}
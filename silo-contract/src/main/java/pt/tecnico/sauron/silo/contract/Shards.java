@@ -0,0 +1,36 @@
+package pt.tecnico.sauron.silo.contract;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
+
+/**
+ * Partitioning of objects across replica groups, for sharded deployments. Each shard
+ * is served by its own group of replicas, registered in ZooKeeper under the shard's
+ * path, and holds only the objects whose type and id hash to it. Every shard holds
+ * every camera. Replicas and clients must agree on the number of shards.
+ */
+public final class Shards {
+  public static final String BASEPATH = "/grpc/sauron/shard";
+
+  private Shards() {
+  }
+
+  /**
+   * @return the ZooKeeper path under which the replicas of a shard are registered.
+   */
+  public static String path(int shard) {
+    return BASEPATH + "/" + shard;
+  }
+
+  /**
+   * @param shards number of shards.
+   * @return the shard that holds an object.
+   */
+  public static int of(ObjectType type, String id, int shards) {
+    int h = type.getNumber() * 31 + id.hashCode();
+    // Spreads ids that differ only in their last characters
+    h ^= h >>> 16;
+    h *= 0x45d9f3b;
+    h ^= h >>> 16;
+    return Math.floorMod(h, shards);
+  }
+}
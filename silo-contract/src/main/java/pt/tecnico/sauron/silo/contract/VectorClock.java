@@ -0,0 +1,228 @@
+package pt.tecnico.sauron.silo.contract;
+
+import java.util.Arrays;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Timestamp;
+
+/**
+ * Vector clock with one entry per replica, indexed by instance number, shared by replicas
+ * and clients. Merging and comparing read Timestamps in place, so neither boxes nor copies
+ * entries. Entries a clock or Timestamp does not have count as 0, and a clock grows when
+ * it learns of a replica past its end, so replicas can join without the others restarting.
+ * Not thread-safe.
+ */
+public class VectorClock {
+  /**
+   * Order of a clock relative to another one.
+   */
+  public enum Order {
+    BEFORE, EQUAL, AFTER, CONCURRENT
+  }
+
+  private int[] entries;
+  // Proto form, dropped on every change
+  private Timestamp proto;
+
+  public VectorClock() {
+    this(0);
+  }
+
+  /**
+   * @param size number of entries to start with, all 0.
+   */
+  public VectorClock(int size) {
+    entries = new int[size];
+  }
+
+  /**
+   * @param timestamp entries to start with.
+   */
+  public VectorClock(Timestamp timestamp) {
+    entries = new int[timestamp.getTimestampCount()];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = timestamp.getTimestamp(i);
+    }
+    proto = timestamp;
+  }
+
+  /**
+   * @param other clock to copy.
+   */
+  public VectorClock(VectorClock other) {
+    entries = other.entries.clone();
+    proto = other.proto;
+  }
+
+  public int size() {
+    return entries.length;
+  }
+
+  public int get(int i) {
+    return i < entries.length ? entries[i] : 0;
+  }
+
+  public void set(int i, int value) {
+    if (get(i) != value) {
+      grow(i + 1);
+      entries[i] = value;
+      proto = null;
+    }
+  }
+
+  /**
+   * @return entry i of a Timestamp, 0 if it does not have it.
+   */
+  public static int get(Timestamp timestamp, int i) {
+    return i < timestamp.getTimestampCount() ? timestamp.getTimestamp(i) : 0;
+  }
+
+  private void grow(int size) {
+    if (size > entries.length) {
+      entries = Arrays.copyOf(entries, size);
+    }
+  }
+
+  /**
+   * Raises every entry to the one of a Timestamp, if higher.
+   *
+   * @return if any entry changed.
+   */
+  public boolean merge(Timestamp other) {
+    boolean changed = false;
+    int n = other.getTimestampCount();
+    for (int i = 0; i < n; i++) {
+      int v = other.getTimestamp(i);
+      if (v > get(i)) {
+        grow(n);
+        entries[i] = v;
+        changed = true;
+      }
+    }
+    if (changed) {
+      proto = null;
+    }
+    return changed;
+  }
+
+  /**
+   * Raises every entry to the one of another clock, if higher.
+   *
+   * @return if any entry changed.
+   */
+  public boolean merge(VectorClock other) {
+    boolean changed = false;
+    int n = other.entries.length;
+    for (int i = 0; i < n; i++) {
+      if (other.entries[i] > get(i)) {
+        grow(n);
+        entries[i] = other.entries[i];
+        changed = true;
+      }
+    }
+    if (changed) {
+      proto = null;
+    }
+    return changed;
+  }
+
+  /**
+   * @return the order of this clock relative to a Timestamp.
+   */
+  public Order compare(Timestamp other) {
+    boolean before = false;
+    boolean after = false;
+    int n = Math.max(entries.length, other.getTimestampCount());
+    for (int i = 0; i < n; i++) {
+      int a = get(i);
+      int b = get(other, i);
+      before |= a < b;
+      after |= a > b;
+    }
+    return order(before, after);
+  }
+
+  /**
+   * @return the order of this clock relative to another one.
+   */
+  public Order compare(VectorClock other) {
+    boolean before = false;
+    boolean after = false;
+    int n = Math.max(entries.length, other.entries.length);
+    for (int i = 0; i < n; i++) {
+      int a = get(i);
+      int b = other.get(i);
+      before |= a < b;
+      after |= a > b;
+    }
+    return order(before, after);
+  }
+
+  private static Order order(boolean before, boolean after) {
+    if (before) {
+      return after ? Order.CONCURRENT : Order.BEFORE;
+    }
+    return after ? Order.AFTER : Order.EQUAL;
+  }
+
+  /**
+   * @return if every entry is at least the one of a Timestamp.
+   */
+  public boolean dominates(Timestamp other) {
+    for (int i = 0; i < other.getTimestampCount(); i++) {
+      if (get(i) < other.getTimestamp(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return if every entry is at least the one of another clock.
+   */
+  public boolean dominates(VectorClock other) {
+    for (int i = 0; i < other.entries.length; i++) {
+      if (get(i) < other.entries[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the clock as a Timestamp. Built again only after the clock changes.
+   */
+  public Timestamp toProto() {
+    if (proto == null) {
+      Timestamp.Builder res = Timestamp.newBuilder();
+      for (int e : entries) {
+        res.addTimestamp(e);
+      }
+      proto = res.build();
+    }
+    return proto;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof VectorClock && compare((VectorClock) o) == Order.EQUAL;
+  }
+
+  @Override
+  public int hashCode() {
+    // Trailing zeros are ignored, as in equals
+    int n = entries.length;
+    while (n > 0 && entries[n - 1] == 0) {
+      n--;
+    }
+    int h = 1;
+    for (int i = 0; i < n; i++) {
+      h = 31 * h + entries[i];
+    }
+    return h;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(entries);
+  }
+}
@@ -0,0 +1,140 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pt.tecnico.sauron.silo.contract.VectorClock;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.Timestamp;
+
+/**
+ * Vector clock of a replica, read and advanced by concurrent threads without locking.
+ * Entries are only advanced once the update they count is applied, so any value read,
+ * even in a snapshot taken while other entries change, only covers applied updates.
+ * The clock grows when an entry past its end is written, as replicas join.
+ */
+public class AtomicVectorClock {
+  // Replaced by a longer copy when the clock grows
+  private volatile AtomicIntegerArray entries;
+  // Incremented after every change, so that the cached proto form can be checked
+  private final AtomicLong version = new AtomicLong();
+  private volatile Cached cached;
+
+  private static class Cached {
+    private final long version;
+    private final Timestamp proto;
+
+    Cached(long version, Timestamp proto) {
+      this.version = version;
+      this.proto = proto;
+    }
+  }
+
+  public AtomicVectorClock() {
+    entries = new AtomicIntegerArray(0);
+  }
+
+  public int size() {
+    return entries.length();
+  }
+
+  public int get(int i) {
+    AtomicIntegerArray e = entries;
+    return i < e.length() ? e.get(i) : 0;
+  }
+
+  /**
+   * Raises an entry. Values lower than the current one are ignored.
+   */
+  public void advance(int i, int value) {
+    AtomicIntegerArray e = entries(i);
+    boolean raised = e.getAndAccumulate(i, value, Math::max) < value;
+    // Raised again in the copy, if the clock grew before or while it was copied
+    while (entries != e) {
+      e = entries;
+      raised |= e.getAndAccumulate(i, value, Math::max) < value;
+    }
+    if (raised) {
+      version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Sets an entry, even to a lower value. Only for replacing a replica's state, while
+   * nothing else changes the clock.
+   */
+  public void set(int i, int value) {
+    entries(i).set(i, value);
+    version.incrementAndGet();
+  }
+
+  /**
+   * @return the entries, grown to hold entry i if needed.
+   */
+  private AtomicIntegerArray entries(int i) {
+    AtomicIntegerArray e = entries;
+    if (i < e.length()) {
+      return e;
+    }
+    synchronized (this) {
+      e = entries;
+      if (i >= e.length()) {
+        AtomicIntegerArray grown = new AtomicIntegerArray(i + 1);
+        for (int j = 0; j < e.length(); j++) {
+          grown.set(j, e.get(j));
+        }
+        entries = grown;
+        // Entries advanced in the old array by threads that had not yet seen the copy
+        for (int j = 0; j < e.length(); j++) {
+          grown.accumulateAndGet(j, e.get(j), Math::max);
+        }
+        e = grown;
+      }
+      return e;
+    }
+  }
+
+  /**
+   * @return if every entry is 0.
+   */
+  public boolean isZero() {
+    AtomicIntegerArray e = entries;
+    for (int i = 0; i < e.length(); i++) {
+      if (e.get(i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a copy of the clock, sharing its cached proto form.
+   */
+  public VectorClock snapshot() {
+    return new VectorClock(toProto());
+  }
+
+  /**
+   * @return the clock as a Timestamp. Built again only after the clock changes.
+   */
+  public Timestamp toProto() {
+    long v = version.get();
+    Cached c = cached;
+    if (c != null && c.version == v) {
+      return c.proto;
+    }
+    Timestamp.Builder res = Timestamp.newBuilder();
+    AtomicIntegerArray e = entries;
+    for (int i = 0; i < e.length(); i++) {
+      res.addTimestamp(e.get(i));
+    }
+    // Entries read after the version, so they are at least as recent as it
+    Timestamp proto = res.build();
+    cached = new Cached(v, proto);
+    return proto;
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+}
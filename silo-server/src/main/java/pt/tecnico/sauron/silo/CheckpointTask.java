@@ -0,0 +1,18 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.TimerTask;
+
+
+public class CheckpointTask extends TimerTask {
+
+    private SiloServerImpl impl;
+
+    public CheckpointTask(SiloServerImpl impl) {
+        this.impl = impl;
+    }
+
+    @Override
+    public void run() {
+        impl.checkpoint();
+    }
+}
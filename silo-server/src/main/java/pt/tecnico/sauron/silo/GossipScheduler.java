@@ -0,0 +1,123 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs gossip rounds one at a time, each scheduled once the previous one is over.
+ * The interval between rounds is halved after a round that found the replicas apart,
+ * or while clients keep sending updates, and doubled after an idle round. It stays
+ * between a sixteenth of the configured interval and four times it.
+ */
+public class GossipScheduler implements GossipSchedulerMXBean {
+  private static final int MAX_SPEEDUP = 16;
+  private static final int MAX_BACKOFF = 4;
+  // Milliseconds below which rounds are never scheduled
+  private static final long MIN_INTERVAL = 100;
+
+  private final SiloServerImpl impl;
+  private final long minInterval;
+  private final long maxInterval;
+  // A single thread, so that rounds never overlap
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread t = new Thread(r, "gossip");
+    t.setDaemon(true);
+    return t;
+  });
+  private Logger logger = Logger.getLogger(GossipScheduler.class.getName());
+
+  private volatile long interval;
+  private volatile long lag;
+  private volatile double updateRate;
+  private volatile long rounds;
+  // Only touched by the gossip thread
+  private long lastUpdates;
+  private long lastRound;
+
+  /**
+   * @param impl the replica.
+   * @param interval configured interval between rounds, in milliseconds.
+   */
+  public GossipScheduler(SiloServerImpl impl, long interval) {
+    this.impl = impl;
+    this.interval = interval;
+    minInterval = Math.max(MIN_INTERVAL, interval / MAX_SPEEDUP);
+    maxInterval = interval * MAX_BACKOFF;
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Schedules the first round after the configured interval.
+   */
+  public void start() {
+    lastUpdates = impl.getClientUpdates();
+    lastRound = System.nanoTime();
+    executor.schedule(this::round, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs a round, then adapts the interval and schedules the next one.
+   */
+  private void round() {
+    try {
+      lag = impl.sendGossip();
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Gossip round failed: {0}", e.getMessage());
+    }
+    rounds++;
+
+    long now = System.nanoTime();
+    long updates = impl.getClientUpdates();
+    updateRate = (updates - lastUpdates) * 1e9 / Math.max(1, now - lastRound);
+    boolean busy = lag > 0 || updates > lastUpdates;
+    lastUpdates = updates;
+    lastRound = now;
+
+    long next = busy ? Math.max(minInterval, interval / 2) : Math.min(maxInterval, interval * 2);
+    if (next != interval) {
+      logger.log(Level.INFO, "Gossip interval is now {0} ms (lag {1} updates, {2} updates/s)",
+          new Object[] { next, lag, updateRate });
+    }
+    interval = next;
+    try {
+      executor.schedule(this::round, interval, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed during the round
+    }
+  }
+
+  /**
+   * Stops scheduling rounds, and waits for the current one, if any, to finish.
+   */
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public long getInterval() {
+    return interval;
+  }
+
+  @Override
+  public long getLag() {
+    return lag;
+  }
+
+  @Override
+  public double getUpdateRate() {
+    return updateRate;
+  }
+
+  @Override
+  public long getRounds() {
+    return rounds;
+  }
+}
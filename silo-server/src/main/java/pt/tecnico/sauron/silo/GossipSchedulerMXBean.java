@@ -0,0 +1,28 @@
+package pt.tecnico.sauron.silo;
+
+/**
+ * Gossip scheduling metrics, published through JMX.
+ *
+ * @see GossipScheduler
+ */
+public interface GossipSchedulerMXBean {
+  /**
+   * @return the current interval between gossip rounds, in milliseconds.
+   */
+  long getInterval();
+
+  /**
+   * @return the number of updates exchanged in the last gossip round.
+   */
+  long getLag();
+
+  /**
+   * @return client updates accepted per second since the last gossip round.
+   */
+  double getUpdateRate();
+
+  /**
+   * @return the number of gossip rounds run.
+   */
+  long getRounds();
+}
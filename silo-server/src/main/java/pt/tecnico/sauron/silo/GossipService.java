@@ -1,16 +1,28 @@
 package pt.tecnico.sauron.silo;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 
 import pt.tecnico.sauron.silo.grpc.*;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
@@ -21,85 +33,303 @@ import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
 
 public class GossipService {
-  private ManagedChannel _channel;
-  private SiloGrpc.SiloBlockingStub _stub;
   private ZKNaming zkNaming;
   private ZKRecord self;
   private static final String BASEPATH = "/grpc/sauron/silo";
+  // Path the replicas of this replica's group are registered under
+  private final String basePath;
+  // Seconds a replica may go without sending anything during a gossip exchange
+  private static final int GOSSIP_DEADLINE = 2;
+  // Milliseconds between checks for idle gossip exchanges
+  private static final long IDLE_CHECK = 200;
+  // Seconds a whole snapshot transfer may take
+  private static final int SNAPSHOT_DEADLINE = 60;
+  // Milliseconds the list of replicas is cached for
+  private static final long MEMBERSHIP_TTL = 30000;
   private Logger logger = Logger.getLogger(GossipService.class.getName());
 
+  // Number of replicas contacted per round
+  private final int fanout;
+
+  // Open channel to each known replica, by path. Kept across rounds
+  private final Map<String, ManagedChannel> channels = new HashMap<>();
+  private List<ZKRecord> peers;
+  private volatile long peersExpire;
+
+  // Update stream from each replica subscribed to, by path. Cancelled to unsubscribe
+  private final Map<String, Context.CancellableContext> subscriptions = new HashMap<>();
+
+  // Gossip round statistics
+  private long rounds;
+  private long roundNanos;
+
   public GossipService(ZKNaming zk, int n) throws ZKNamingException{
-    zkNaming =  zk; 
-    self = zkNaming.lookup(BASEPATH + "/" + n);
+    this(zk, n, 1);
+  }
+
+  public GossipService(ZKNaming zk, int n, int fanout) throws ZKNamingException{
+    this(zk, BASEPATH, n, fanout);
+  }
+
+  /**
+   * @param zk naming service where replicas are registered.
+   * @param basePath path the replicas that share state are registered under, one per shard.
+   * @param n instance number of this replica.
+   * @param fanout number of replicas contacted per gossip round.
+   * @throws ZKNamingException
+   */
+  public GossipService(ZKNaming zk, String basePath, int n, int fanout) throws ZKNamingException{
+    zkNaming =  zk;
+    this.basePath = basePath;
+    self = zkNaming.lookup(basePath + "/" + n);
+    this.fanout = fanout;
+  }
+
+  /**
+   * Picks distinct random replicas that are not itself.
+   *
+   * @param k maximum number of replicas.
+   * @return up to k replicas.
+   */
+  private List<ZKRecord> pickRandom(int k){
+    final List<ZKRecord> records = new ArrayList<>(peers());
+    if(records.isEmpty()){
+      logger.warning("No other replicas found.");
+      throw new StatusRuntimeException(Status.NOT_FOUND);
+    }
+    Collections.shuffle(records);
+    return records.subList(0, Math.min(k, records.size()));
   }
 
   /**
-  * Connects to a random replica that is not itself.
-  */
-  private void connectRandom(){
+   * @return the channel to a replica, opening it if needed.
+   */
+  private ManagedChannel channel(ZKRecord peer){
+    return channels.computeIfAbsent(peer.getPath(),
+        path -> ManagedChannelBuilder.forTarget(peer.getURI()).usePlaintext().build());
+  }
+
+  /**
+   * Lists the other replicas. The list is cached, and channels to replicas that
+   * left, or moved to another address, are closed whenever it is refreshed.
+   *
+   * @return every known replica that is not itself.
+   */
+  private List<ZKRecord> peers(){
+    if(peers != null && System.currentTimeMillis() < peersExpire)
+      return peers;
     try{
-      final List<ZKRecord> records = zkNaming.listRecords(BASEPATH).stream().filter(record -> !record.equals(self)).collect(Collectors.toList());
-      if(records.size() > 0){
-        final String path = records.get(new Random().nextInt(records.size())).getPath();
-        final String target = zkNaming.lookup(path).getURI();
-        _channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-        _stub = SiloGrpc.newBlockingStub(_channel);
-        logger.log(Level.INFO, "Connected to {0}" , path);
-      }else{
-        logger.warning("No other replicas found.");
-        throw new StatusRuntimeException(Status.NOT_FOUND);
-      }
+      peers = zkNaming.listRecords(basePath).stream().filter(record -> !record.equals(self)).collect(Collectors.toList());
+      peersExpire = System.currentTimeMillis() + MEMBERSHIP_TTL;
     }catch(final ZKNamingException e){
       logger.log(Level.SEVERE, e.getMessage());
       throw new StatusRuntimeException(Status.FAILED_PRECONDITION);
     }
+    Map<String, String> targets = peers.stream().collect(Collectors.toMap(ZKRecord::getPath, ZKRecord::getURI));
+    channels.entrySet().removeIf(e -> {
+      if(e.getValue().authority().equals(targets.get(e.getKey())))
+        return false;
+      e.getValue().shutdown();
+      return true;
+    });
+    return peers;
   }
 
   /**
-   * Public gossip request access point. Hides counter logic from invoker.
-   * 
-   * @param request The gossip request to send.
-   * @return the gossip response.
-   * @see GossipService#gossip(GossipRequest, int)
+   * Lists the other replicas currently registered, from the cached list. Replicas
+   * join and leave by registering in and unregistering from ZooKeeper.
+   *
+   * @return the instance number of every known replica that is not itself. Replicas
+   *         registered under a path that is not an instance number are left out.
+   * @throws StatusRuntimeException if the replicas cannot be listed.
    */
-  public GossipResponse gossip(GossipRequest request){
-    connectRandom();
-    GossipResponse res = gossip(request, 0);
-    _channel.shutdownNow();
-    return res;
+  public synchronized Set<Integer> members(){
+    return peers().stream().map(GossipService::instance).filter(id -> id >= 0).collect(Collectors.toSet());
   }
 
   /**
-   * Safe recursive implementation of gossip request. Tries 3 times or until an 
-   * UNAVAILABLE code is received. Then, connects to another replica 
-   * and starts over.
-   * 
-   * @param request the gossip request to send.
-   * @param c repetition counter.
-   * @return the gossip response.
+   * @return the instance number a replica is registered with, -1 if unknown. Instance numbers start at 0.
    */
-  private GossipResponse gossip(GossipRequest request, int c){
-    if(c == 3){
-      connectRandom();
-      return gossip(request,0);
+  private static int instance(ZKRecord peer){
+    try{
+      return Integer.parseInt(peer.getPath().substring(peer.getPath().lastIndexOf('/') + 1));
+    }catch(NumberFormatException e){
+      return -1;
     }
+  }
+
+  /**
+   * Gossip round. Exchanges updates with fanout random replicas at once, and returns
+   * once every exchange has finished or timed out. Replies are streamed, so an exchange
+   * only times out once its replica stops sending, however long the whole reply takes.
+   * Replicas that fail are skipped until the next round.
+   *
+   * @param requests builds the request for a replica, given its instance number.
+   * @param responses called with each replica's instance number and response, as they arrive.
+   *                  Calls for different replicas may be concurrent.
+   * @throws StatusRuntimeException if no replica is known.
+   */
+  public void gossip(Function<Integer, GossipRequest> requests, BiConsumer<Integer, GossipResponse> responses){
+    long start = System.nanoTime();
+    final Map<ZKRecord, ManagedChannel> targets = new HashMap<>();
+    synchronized(this){
+      for(ZKRecord peer : pickRandom(fanout)){
+        targets.put(peer, channel(peer));
+      }
+    }
+
+    CountDownLatch done = new CountDownLatch(targets.size());
+    // Time each exchange last received something
+    final Map<Context.CancellableContext, AtomicLong> exchanges = new HashMap<>();
+    targets.forEach((peer, channel) -> {
+      final int id = instance(peer);
+      final AtomicLong active = new AtomicLong(System.nanoTime());
+      final Context.CancellableContext context = Context.current().withCancellation();
+      exchanges.put(context, active);
+      context.run(() -> SiloGrpc.newStub(channel).gossip(requests.apply(id),
+          new StreamObserver<GossipResponse>(){
+            @Override
+            public void onNext(GossipResponse res){
+              responses.accept(id, res);
+              active.set(System.nanoTime());
+            }
+
+            @Override
+            public void onError(Throwable t){
+              Status status = Status.fromThrowable(t);
+              logger.log(Level.WARNING, "Gossip with {0} failed: {1}", new Object[]{ peer.getPath(), status });
+              if(status.getCode() == Status.Code.UNAVAILABLE){
+                // Replica may be down, refresh the replicas before the next round
+                peersExpire = 0;
+              }
+              done.countDown();
+            }
+
+            @Override
+            public void onCompleted(){
+              done.countDown();
+            }
+          }));
+    });
+
     try{
-      return _stub.withDeadlineAfter(2, TimeUnit.SECONDS).gossip(request);
-
-    } catch(final StatusRuntimeException e){
-      if(e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED)
-        // Deadline, try again
-        return gossip(request, c+1);
-      else if(e.getStatus().getCode() == Status.Code.UNAVAILABLE){
-        // Server down, connect to another node and restart count
-        logger.warning("Replica is down");
-        connectRandom();
-        return gossip(request, 0);
-      }else{
-        // Unknown error, stop process
-        logger.severe(e.getMessage());
-        throw e;
+      while(!done.await(IDLE_CHECK, TimeUnit.MILLISECONDS)){
+        long now = System.nanoTime();
+        exchanges.forEach((context, active) -> {
+          if(now - active.get() > TimeUnit.SECONDS.toNanos(GOSSIP_DEADLINE))
+            context.cancel(Status.DEADLINE_EXCEEDED.asRuntimeException());
+        });
       }
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+    }finally{
+      exchanges.keySet().forEach(context -> context.cancel(null));
+    }
+    long elapsed = System.nanoTime() - start;
+    synchronized(this){
+      rounds++;
+      roundNanos += elapsed;
+      logger.log(Level.INFO, "Gossip round with {0} replicas took {1} ms (average {2} ms over {3} rounds)",
+          new Object[]{ targets.size(), elapsed / 1e6, roundNanos / 1e6 / rounds, rounds });
+    }
+  }
+
+  /**
+   * Subscribes to the client updates of every known replica that is not subscribed to yet.
+   * Subscriptions that fail are dropped, to be renewed by a later call.
+   *
+   * @param requests builds the subscription request for a replica, given its instance number.
+   * @param updates called with each replica's instance number and updates, as they arrive.
+   *                Calls for different replicas may be concurrent.
+   */
+  public synchronized void subscribe(Function<Integer, ReplicateRequest> requests, BiConsumer<Integer, GossipUpdate> updates){
+    for(ZKRecord peer : peers()){
+      final String path = peer.getPath();
+      if(subscriptions.containsKey(path))
+        continue;
+      final int id = instance(peer);
+      final Context.CancellableContext context = Context.current().withCancellation();
+      subscriptions.put(path, context);
+      final ManagedChannel channel = channel(peer);
+      context.run(() -> SiloGrpc.newStub(channel).replicate(requests.apply(id), new StreamObserver<GossipUpdate>(){
+        @Override
+        public void onNext(GossipUpdate updt){
+          updates.accept(id, updt);
+        }
+
+        @Override
+        public void onError(Throwable t){
+          logger.log(Level.WARNING, "Subscription to {0} ended: {1}", new Object[]{ path, Status.fromThrowable(t) });
+          unsubscribe(path, context);
+        }
+
+        @Override
+        public void onCompleted(){
+          unsubscribe(path, context);
+        }
+      }));
+      logger.log(Level.INFO, "Subscribed to {0}", path);
+    }
+  }
+
+  private synchronized void unsubscribe(String path, Context.CancellableContext context){
+    subscriptions.remove(path, context);
+    context.cancel(null);
+  }
+
+  /**
+   * Streams the current state of a random replica.
+   *
+   * @param consumer called with each chunk, header first.
+   * @throws StatusRuntimeException if no replica is reachable or the transfer fails.
+   */
+  public void snapshot(Consumer<SnapshotChunk> consumer){
+    final ZKRecord peer;
+    final ManagedChannel channel;
+    synchronized(this){
+      peer = pickRandom(1).get(0);
+      channel = channel(peer);
+    }
+    logger.log(Level.INFO, "Loading snapshot from {0}" , peer.getPath());
+    // Cancels the transfer if the consumer fails before reading it all
+    Context.CancellableContext context = Context.current().withCancellation();
+    try{
+      context.run(() -> {
+        Iterator<SnapshotChunk> chunks = SiloGrpc.newBlockingStub(channel)
+            .withDeadlineAfter(SNAPSHOT_DEADLINE, TimeUnit.SECONDS)
+            .snapshot(SnapshotRequest.getDefaultInstance());
+        while(chunks.hasNext()){
+          consumer.accept(chunks.next());
+        }
+      });
+    }finally{
+      context.cancel(null);
+    }
+  }
+
+  /**
+   * Connects to a random replica, for exchanges that take several calls.
+   *
+   * @return a blocking stub over the pooled channel to the replica.
+   * @throws StatusRuntimeException if no replica is known.
+   */
+  public synchronized SiloGrpc.SiloBlockingStub connectRandom(){
+    ZKRecord peer = pickRandom(1).get(0);
+    logger.log(Level.INFO, "Connecting to {0}", peer.getPath());
+    return SiloGrpc.newBlockingStub(channel(peer));
+  }
+
+  /**
+   * Closes every open channel.
+   */
+  public synchronized void close(){
+    for(Context.CancellableContext context : subscriptions.values()){
+      context.cancel(null);
+    }
+    subscriptions.clear();
+    for(ManagedChannel channel : channels.values()){
+      channel.shutdown();
     }
+    channels.clear();
   }
-}
\ No newline at end of file
+}
@@ -17,6 +17,7 @@ import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ObjectType;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ReportedObject;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ReportedObjects;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.ReportedObservation;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.SnapshotObject;
 
 /**
  * Bridge between server domain and gRPC domain. Checks and transforms gRPC Objects into domain objects
@@ -27,6 +28,13 @@ public class PersistentObjectFactory {
     // Pattern 2 is 2 letters and 4 numbers. 00AA00, AA0000 and 0000AA
     private static final String PATTERN2 = "([0-9]{2}[A-Z]{2}[0-9]{2}|[A-Z]{2}[0-9]{4}|[0-9]{4}[A-Z]{2})";
 
+    // Where built objects intern the cameras of their observations
+    private final CameraDictionary cameras;
+
+    public PersistentObjectFactory(CameraDictionary cameras) {
+        this.cameras = cameras;
+    }
+
     /**
      * Builds a domain object from gRPC data
      * @param type gRPC ObjectType
@@ -41,13 +49,13 @@ public class PersistentObjectFactory {
             try {
                 // If it fits a long, it is a long
                 Long.parseLong(sId);
-                return new PersistentObject(sId, PersistentObject.ObjectType.PERSON);
+                return new PersistentObject(sId, PersistentObject.ObjectType.PERSON, cameras);
             } catch (NumberFormatException e) {
                 throw new SiloException(ErrorMessage.PERSON_ID_FORMAT, sId);
             }
         } else if (type == ObjectType.CAR) {
             parseCarId(sId);
-            return new PersistentObject(sId, PersistentObject.ObjectType.CAR);
+            return new PersistentObject(sId, PersistentObject.ObjectType.CAR, cameras);
         } else {
             throw new SiloException(ErrorMessage.INVALID_TYPE, type.toString());
         }
@@ -111,19 +119,19 @@ public class PersistentObjectFactory {
     }
 
     public Instant convert (Timestamp t){
-        return Instant.ofEpochSecond(Timestamps.toSeconds(t));
+        return Instant.ofEpochMilli(Timestamps.toMillis(t));
     }
 
     public ReportedObservation convert(PersistentObservation o){
         Camera c = convert(o.getCamera());
         Timestamp ts = convert(o.getTimestamp());
-        return ReportedObservation.newBuilder().setTimestamp(ts).setCamera(c).build();
+        return ReportedObservation.newBuilder().setTimestamp(ts).setCamera(c).setOrigin(o.getOrigin()).build();
     }
 
     public PersistentObservation convert(ReportedObservation o){
         PersistentCamera c = convert(o.getCamera());
         Instant i = convert(o.getTimestamp());
-        return new PersistentObservation(i, c);
+        return new PersistentObservation(i, c, o.getOrigin());
     }
 
     public ReportedObject convert(PersistentObject o){
@@ -135,13 +143,53 @@ public class PersistentObjectFactory {
     }
 
     public PersistentObject convert(ReportedObject o){
-        PersistentObject res = new  PersistentObject(o.getId(), convert(o.getType()));
+        PersistentObject res = new  PersistentObject(o.getId(), convert(o.getType()), cameras);
         for( ReportedObservation obs: o.getObservationsList()){
             res.addObservation(convert(obs));
         }
         return res;
     }
 
+    /**
+     * Builds a snapshot record of an object, with camera ordinals of the replica's dictionary
+     * @param o silo-domain object
+     * @return the object's snapshot record
+     */
+    public SnapshotObject snapshot(PersistentObject o){
+        SnapshotObject.Builder res = SnapshotObject.newBuilder().setType(convert(o.getType())).setId(o.getId());
+        for (long t : o.getObservationTimes()){
+            res.addTimes(t);
+        }
+        for (int c : o.getObservationCameras()){
+            res.addCameras(c);
+        }
+        for (long origin : o.getObservationOrigins()){
+            res.addOrigins(origin);
+        }
+        return res.build();
+    }
+
+    /**
+     * Rebuilds an object from its snapshot record
+     * @param o snapshot record
+     * @param ordinals maps the snapshot's camera ordinals to ordinals of this replica's dictionary
+     * @return a silo-domain object
+     */
+    public PersistentObject restore(SnapshotObject o, int[] ordinals){
+        long[] times = new long[o.getTimesCount()];
+        int[] cams = new int[o.getCamerasCount()];
+        // Snapshots taken before observations had origins have none
+        long[] origins = new long[times.length];
+        for (int i = 0; i < times.length; i++){
+            times[i] = o.getTimes(i);
+            cams[i] = ordinals[o.getCameras(i)];
+            if (i < o.getOriginsCount())
+                origins[i] = o.getOrigins(i);
+        }
+        PersistentObject res = new PersistentObject(o.getId(), convert(o.getType()), cameras);
+        res.addObservation(times, cams, origins);
+        return res;
+    }
 
     public GossipUpdate convert(List<GossipTarget> target, int replicaID,int updateID){
         GossipUpdate.Builder gossip = GossipUpdate.newBuilder();
@@ -1,19 +1,24 @@
 package pt.tecnico.sauron.silo;
 
-import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.Scanner;
 import java.util.Timer;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import pt.tecnico.sauron.silo.contract.Shards;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 public class SiloServerApp {
 
   public static void main(String[] args)
-      throws IOException, InterruptedException, ZKNamingException {
+      throws IOException, InterruptedException, ZKNamingException, JMException {
     System.out.println(SiloServerApp.class.getSimpleName());
 
     // receive and print arguments
@@ -23,9 +28,9 @@ public class SiloServerApp {
     }
 
     // check arguments
-    if (args.length < 6 || args.length > 7) {
+    if (args.length < 5 || args.length > 11) {
       System.err.println("Argument(s) missing!");
-      System.err.printf("Usage: java %s zooHost zooPort instanceNumber host port nReplicas [gossipInterval]%n", SiloServerApp.class.getName());
+      System.err.printf("Usage: java %s zooHost zooPort instanceNumber host port [gossipInterval [logDir [snapshotInterval [gossipFanout [replication [shard/shards]]]]]]%n", SiloServerApp.class.getName());
       return;
     }
 
@@ -35,18 +40,33 @@ public class SiloServerApp {
 		final String instance = args[2];
 		final String host = args[3];
     final String port = args[4];
-    final int nReplicas = Integer.parseInt(args[5]);
     final long gossipTime;
-    if(args.length == 7){
-      gossipTime = Long.parseLong(args[6]);
+    if(args.length >= 6){
+      gossipTime = Long.parseLong(args[5]);
     }else{
       gossipTime = 30;
     }
-
-    final BindableService impl;
+    // Directory for the write-ahead log. Updates are kept in memory only if absent or "-"
+    final String logDir = args.length >= 7 && !args[6].equals("-") ? args[6] : null;
+    // Seconds between snapshots of the replica's state, 0 to only take them after loading or merging another replica's state
+    final long snapshotTime = args.length >= 8 ? Long.parseLong(args[7]) : 300;
+    // Replicas contacted per gossip round
+    final int gossipFanout = args.length >= 9 ? Integer.parseInt(args[8]) : 1;
+    // "stream" to receive updates as soon as other replicas accept them, "pull" to rely on gossip rounds alone
+    final boolean streaming = args.length >= 10 && args[9].equals("stream");
+    // Shard served, as "shard/shards". Every object is held if absent
+    final int shard = args.length == 11 ? Integer.parseInt(args[10].split("/")[0]) : 0;
+    final int shards = args.length == 11 ? Integer.parseInt(args[10].split("/")[1]) : 1;
+
+    final SiloServerImpl impl;
+    final WriteAheadLog wal = logDir != null ? new WriteAheadLog(Paths.get(logDir)) : null;
+    // Kept even without periodic snapshots, as state loaded from other replicas is not in the log
+    final SnapshotStore snapshots = logDir != null ? new SnapshotStore(Paths.get(logDir)) : null;
     ZKNaming zkNaming = null;
     GossipService gossip = null;
-    final String path = BASEPATH + "/" + instance;
+    // Replicas of a shard only share state with each other
+    final String basePath = shards > 1 ? Shards.path(shard) : BASEPATH;
+    final String path = basePath + "/" + instance;
 
     try {
 
@@ -54,36 +74,62 @@ public class SiloServerApp {
       // publish
       zkNaming.rebind(path, host, port);
 
-      gossip = new GossipService(zkNaming, Integer.parseInt(instance));
+      gossip = new GossipService(zkNaming, basePath, Integer.parseInt(instance), gossipFanout);
 
-      impl = new SiloServerImpl(nReplicas, gossip, Integer.parseInt(instance));
+      impl = new SiloServerImpl(gossip, Integer.parseInt(instance), wal, snapshots);
+      if(shards > 1){
+        impl.setShard(shard, shards);
+      }
+      // Restore persisted state before accepting requests
+      impl.recover();
+      // A replica without updates loads a peer's state instead of gossiping it all
+      impl.bootstrap();
       // Create a new server to listen on port
       Server server = ServerBuilder.forPort(Integer.parseInt(port)).addService(impl).build();
 
       // Start the server
       server.start();
 
+      if(streaming){
+        impl.subscribe();
+      }
+
       // create timer object as daemon
       Timer timer = new Timer(true);
 
-      // create timer task object
-      MyTimerTask ttask = new MyTimerTask(impl);
+      // Gossip interval adapts to load, starting from the configured one
+      final GossipScheduler scheduler = gossipTime > 0 ? new GossipScheduler(impl, gossipTime*1000) : null;
+
+      if(scheduler != null){
+        ManagementFactory.getPlatformMBeanServer().registerMBean(scheduler,
+            new ObjectName("pt.tecnico.sauron.silo:type=GossipScheduler,instance=" + instance));
+        scheduler.start();
+      }
+
+      CheckpointTask ctask = new CheckpointTask(impl);
 
-      if(gossipTime > 0){
-        // schedule timer task periodically
-        timer.schedule(ttask, gossipTime*1000 , gossipTime*1000);
+      if(snapshots != null && snapshotTime > 0){
+        timer.schedule(ctask, snapshotTime*1000, snapshotTime*1000);
       }
 
       // Server threads are running in the background.
       System.out.printf("Server started on port %s\n", port);
+      final GossipService peers = gossip;
       new Thread(() -> {
         System.out.println("<Press enter to shutdown>");
         new Scanner(System.in).nextLine();
 
   
         timer.cancel();
-        ttask.cancel();
+        ctask.cancel();
+        if (scheduler != null) {
+          scheduler.close();
+        }
         server.shutdown();
+        peers.close();
+        if (wal != null) {
+          wal.close();
+        }
       }).start();
 
       // Do not exit the main thread. Wait until server is terminated.
@@ -1,57 +1,450 @@
 package pt.tecnico.sauron.silo;
 
+import static io.grpc.Status.INTERNAL;
 import static io.grpc.Status.INVALID_ARGUMENT;
 import static io.grpc.Status.NOT_FOUND;
+import static io.grpc.Status.UNAVAILABLE;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
 
 import com.google.protobuf.Empty;
+import com.google.protobuf.Int32Value;
 import com.google.protobuf.util.Timestamps;
 
+import pt.tecnico.sauron.silo.contract.Shards;
+import pt.tecnico.sauron.silo.contract.VectorClock;
 import pt.tecnico.sauron.silo.grpc.*;
 import pt.tecnico.sauron.silo.domain.*;
 import pt.tecnico.sauron.silo.domain.exceptions.*;
 import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
-	// Domain root
-	private Silo silo = new Silo();
+	// Objects per chunk of a snapshot transfer
+	private static final int SNAPSHOT_CHUNK = 256;
+	// Bytes of updates per gossip reply batch, well below the default gRPC message limit
+	private static final int GOSSIP_BATCH_BYTES = 1 << 20;
+	// Streamed updates held while waiting for earlier ones. Beyond this, anti-entropy catches up
+	private static final int MAX_EARLY_UPDATES = 1024;
+	// New updates queued for a subscriber behind its backlog. Beyond this, it is dropped as too slow
+	private static final int MAX_QUEUED_UPDATES = 1024;
+	// Merkle tree buckets whose objects are exchanged per reconcile call
+	private static final int RECONCILE_BUCKETS = 64;
+	// Seconds each anti-entropy call may take
+	private static final int RECONCILE_DEADLINE = 10;
 
-	private PersistentObjectFactory factory = new PersistentObjectFactory();
+	// Domain root. Replaced as a whole by state transfers
+	private volatile Silo silo = new Silo();
+
+	private PersistentObjectFactory factory = new PersistentObjectFactory(silo.getCameraDictionary());
 
 	private GossipService gossip;
-	
-	private final List<Integer> currentTimestamp;
 
-	private Map<Integer, List<List<GossipTarget>>> updateLog = new HashMap<>(); // replica's id, replica's updates (gossipCamera or gossipObject)
-	private Map<Integer, Integer> lastUpdates = new HashMap<>();
+	// Durable record of accepted updates. Null if persistence is disabled
+	private WriteAheadLog wal;
+
+	// Checkpoints of the replica's state. Null if persistence is disabled
+	private SnapshotStore snapshots;
+
+	// Held shared by updates, exclusively while a checkpoint fixes its cut
+	private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+	// Set when a checkpoint is put off by a snapshot transfer, to be taken once it ends
+	private final AtomicBoolean checkpointDue = new AtomicBoolean();
+	// Serializes updates received from other replicas, which may arrive concurrently
+	private final Object gossipLock = new Object();
+
+	// Replicas this replica streams its client updates to
+	private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+	// Whether this replica subscribes to the other replicas' updates. Pull gossip is then only anti-entropy
+	private volatile boolean streaming;
+	// Streamed updates that arrived before the updates preceding them, by replica and update id
+	private final Map<Integer, SortedMap<Integer, GossipUpdate>> earlyUpdates = new HashMap<>();
+	
+	// Advanced only once an update is in the Silo and the update log
+	private final AtomicVectorClock currentTimestamp;
+
+	// Updates of each replica. Each holds only what its update added, and is never modified.
+	// Updates before a replica's start were either seen by every replica or covered by a loaded snapshot
+	private final UpdateLog updateLog;
+	// Last known timestamp of each peer, by instance number. Filled from gossip requests
+	private final Map<Integer, VectorClock> peerTimestamps = new ConcurrentHashMap<>();
+	private final Map<Integer, Integer> lastUpdates = new ConcurrentHashMap<>();
+	// Orders the client updates of this replica, in the update log and the write-ahead log
+	private final Object clientLock = new Object();
+	// Client updates of this replica numbered but not yet made, as they wait for the disk. Guarded by clientLock
+	private int pending;
+	// Serializes camera joins
+	private final Object joinLock = new Object();
+	// Client updates accepted, for gossip scheduling
+	private final AtomicLong clientUpdates = new AtomicLong();
 
 	Logger logger = Logger.getLogger(SiloServerImpl.class.getName());
 
-	int nReplicas;
-
 	int rID;
 
-	public SiloServerImpl(int nRep, GossipService g, int id){
-		nReplicas = nRep;
+	// Shard this replica serves, out of shards. With a single shard, it holds every object
+	private int shard;
+	private int shards = 1;
+
+	public SiloServerImpl(GossipService g, int id){
 		gossip = g;
 		rID = id;
-		currentTimestamp = new ArrayList<>(Collections.nCopies(nRep, 0));
-		for(int i=0; i<nRep; i++){
-			updateLog.put(i, new ArrayList<>());
+		currentTimestamp = new AtomicVectorClock();
+		updateLog = new UpdateLog();
+	}
+
+	/**
+	 * Makes this replica serve a single shard, and reject reports of objects held by other shards.
+	 * Must be called before the server accepts requests.
+	 *
+	 * @param shard the shard served.
+	 * @param shards the number of shards.
+	 * @see Shards
+	 */
+	public void setShard(int shard, int shards){
+		this.shard = shard;
+		this.shards = shards;
+	}
+
+	/**
+	 * Constructor for a replica that persists accepted updates.
+	 *
+	 * @param wal write-ahead log to record updates in. Must be replayed with recover before use.
+	 * @param snapshots where checkpoints are kept, or null to keep the whole log. A replica
+	 *                  without them does not load a peer's state, which the log would not cover.
+	 * @see SiloServerImpl#recover()
+	 */
+	public SiloServerImpl(GossipService g, int id, WriteAheadLog wal, SnapshotStore snapshots){
+		this(g, id);
+		this.wal = wal;
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Restores the state recorded in the latest snapshot and the write-ahead log
+	 * segments after it, and starts logging new updates. Must be called before
+	 * the server accepts requests.
+	 *
+	 * @throws IOException
+	 */
+	public void recover() throws IOException {
+		if(wal == null)
+			return;
+		long start = System.nanoTime();
+		long[] from = {0};
+		int[][] ordinals = {null};
+		int[] objects = {0};
+		boolean loaded = snapshots != null && snapshots.readLatest(header -> {
+			ordinals[0] = restore(header);
+			from[0] = header.getLogSegment();
+		}, o -> {
+			silo.addObject(factory.restore(o, ordinals[0]));
+			objects[0]++;
+		});
+		long loadTime = (System.nanoTime() - start) / 1000000;
+
+		start = System.nanoTime();
+		int n = wal.replay(from[0], entry -> {
+			apply(entry.getUpdate());
+			if(entry.getClientId() != 0)
+				lastUpdates.merge(entry.getClientId(), entry.getClientUpdate(), Math::max);
+		});
+		long replayTime = (System.nanoTime() - start) / 1000000;
+		wal.start();
+
+		if(loaded)
+			logger.log(Level.INFO, "Loaded snapshot of {0} objects in {1} ms", new Object[]{objects[0], loadTime});
+		logger.log(Level.INFO, "Replayed {0} updates in {1} ms. Current timestamp: {2}", new Object[]{n, replayTime, currentTimestamp});
+	}
+
+	/**
+	 * Begins a checkpoint and fills a snapshot header with the state it was taken at.
+	 * The caller must hold the state lock exclusively.
+	 *
+	 * @param header snapshot header to fill.
+	 * @return the checkpoint, to be closed once its objects are read.
+	 * @throws IllegalStateException if another checkpoint is in progress.
+	 */
+	private Checkpoint cut(SnapshotHeader.Builder header){
+		Checkpoint cp = silo.beginCheckpoint();
+		header.setTimestamp(currentTimestamp.toProto())
+				.putAllLastUpdates(lastUpdates);
+		for(PersistentCamera c : cp.getCameras())
+			header.addCameras(factory.convert(c));
+		for(PersistentCamera c : cp.getObservedCameras())
+			header.addObservedCameras(factory.convert(c));
+		return cp;
+	}
+
+	/**
+	 * Loads a peer's snapshot if this replica has no updates yet, so that it does not
+	 * have to catch up through gossip. Must be called before the server accepts requests.
+	 * Skipped if updates are logged but snapshots are not kept: replaying the log after a
+	 * restart would advance the clock past the loaded state without restoring it.
+	 *
+	 * @see SiloServerImpl#transfer()
+	 */
+	public void bootstrap(){
+		if(!currentTimestamp.isZero())
+			return;
+		if(wal != null && snapshots == null){
+			logger.warning("Not loading a snapshot from another replica, as it could not be persisted");
+			return;
 		}
+		transfer();
+	}
+
+	/**
+	 * Replaces this replica's state with a snapshot of a random peer, for when it starts without
+	 * any. The snapshot is loaded aside and swapped in, then the updates in this replica's log
+	 * that the snapshot does not cover are applied on top of it.
+	 * The new state is checkpointed, if persistence is enabled.
+	 *
+	 * @see GossipService#snapshot(java.util.function.Consumer)
+	 */
+	private void transfer(){
+		long start = System.nanoTime();
+		Silo loaded = new Silo(silo.getCameraDictionary());
+		SnapshotHeader[] header = {null};
+		int[][] ordinals = {null};
+		int[] objects = {0};
+		try{
+			gossip.snapshot(chunk -> {
+				if(chunk.hasHeader()){
+					header[0] = chunk.getHeader();
+					ordinals[0] = ordinals(header[0]);
+				}
+				for(SnapshotObject o : chunk.getObjectsList()){
+					loaded.addObject(factory.restore(o, ordinals[0]));
+					objects[0]++;
+				}
+			});
+		}catch(StatusRuntimeException e){
+			logger.log(Level.WARNING, "Could not load a snapshot from another replica: {0}", e.getMessage());
+			return;
+		}
+
+		stateLock.writeLock().lock();
+		try{
+			// Every replica's log starts at or before any peer's timestamp, so these are all logged
+			VectorClock timestamp = new VectorClock(header[0].getTimestamp());
+			List<GossipUpdate> pending = new ArrayList<>();
+			for(int rid=0; rid<currentTimestamp.size(); rid++){
+				for(int uid = Math.max(timestamp.get(rid), updateLog.start(rid)); uid < currentTimestamp.get(rid); uid++)
+					pending.add(updateLog.get(rid, uid));
+			}
+			silo = loaded;
+			restore(header[0]);
+			for(GossipUpdate u : pending)
+				apply(u);
+		}finally{
+			stateLock.writeLock().unlock();
+		}
+		logger.log(Level.INFO, "Loaded snapshot of {0} objects from another replica in {1} ms. Current timestamp: {2}",
+				new Object[]{objects[0], (System.nanoTime() - start) / 1000000, currentTimestamp});
+		checkpoint();
+	}
+
+	/**
+	 * Snapshot transfer handler. Streams this replica's current state in chunks: first
+	 * the header, with the vector clock, then the objects. Chunks are only sent as fast
+	 * as the receiver reads them.
+	 *
+	 * @param request SnapshotRequest.
+	 * @param responseObserver stream observer to where we write.
+	 * @see SnapshotStream
+	 */
+	@Override
+	public void snapshot(SnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver){
+		ServerCallStreamObserver<SnapshotChunk> call = (ServerCallStreamObserver<SnapshotChunk>) responseObserver;
+		SnapshotHeader.Builder header = SnapshotHeader.newBuilder();
+		Checkpoint cp;
+		stateLock.writeLock().lock();
+		try{
+			cp = cut(header);
+		}catch(IllegalStateException e){
+			logger.warning(e.getMessage());
+			responseObserver.onError(UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
+			return;
+		}finally{
+			stateLock.writeLock().unlock();
+		}
+
+		SnapshotStream stream = new SnapshotStream(call, cp, header.build());
+		call.setOnCancelHandler(stream::cancel);
+		call.setOnReadyHandler(stream);
+		stream.run();
+	}
+
+	/**
+	 * Reply to a snapshot request. Sends the objects of a checkpoint in chunks, each
+	 * read from the checkpoint only once the requester is ready for it, and ends the
+	 * checkpoint once they are all sent or the requester cancels.
+	 */
+	private class SnapshotStream implements Runnable {
+		private final ServerCallStreamObserver<SnapshotChunk> call;
+		private final Checkpoint cp;
+		private final Iterator<PersistentObject> objects;
+		// Sent first, then cleared
+		private SnapshotHeader header;
+		private boolean done;
+
+		SnapshotStream(ServerCallStreamObserver<SnapshotChunk> call, Checkpoint cp, SnapshotHeader header){
+			this.call = call;
+			this.cp = cp;
+			this.header = header;
+			objects = cp.objects();
+		}
+
+		/**
+		 * Sends chunks while the requester is ready for them.
+		 */
+		@Override
+		public synchronized void run(){
+			while(!done && call.isReady()){
+				SnapshotChunk.Builder chunk = SnapshotChunk.newBuilder();
+				if(header != null){
+					chunk.setHeader(header);
+				}else{
+					for(int i=0; i<SNAPSHOT_CHUNK && objects.hasNext(); i++)
+						chunk.addObjects(factory.snapshot(objects.next()));
+				}
+				call.onNext(chunk.build());
+				if(header != null){
+					header = null;
+					continue;
+				}
+				if(!objects.hasNext()){
+					finish();
+					call.onCompleted();
+					logger.log(Level.INFO, "Sent snapshot");
+				}
+			}
+		}
+
+		synchronized void cancel(){
+			if(!done){
+				finish();
+				logger.warning("Snapshot transfer cancelled");
+			}
+		}
+
+		private void finish(){
+			done = true;
+			cp.close();
+			// Periodic checkpoints that found this transfer in progress were put off until now
+			if(checkpointDue.getAndSet(false))
+				CompletableFuture.runAsync(SiloServerImpl.this::checkpoint);
+		}
+	}
+
+	/**
+	 * Restores the replica's clock, clients and cameras from a snapshot header.
+	 *
+	 * @param header the snapshot's header.
+	 * @return the ordinal in this replica's camera dictionary of each camera observed in the snapshot.
+	 */
+	private int[] restore(SnapshotHeader header){
+		VectorClock timestamp = new VectorClock(header.getTimestamp());
+		for(int rid=0; rid<Math.max(timestamp.size(), currentTimestamp.size()); rid++){
+			currentTimestamp.set(rid, timestamp.get(rid));
+			updateLog.reset(rid, timestamp.get(rid));
+		}
+		header.getLastUpdatesMap().forEach((cid, uid) -> lastUpdates.merge(cid, uid, Math::max));
+		for(Camera c : header.getCamerasList())
+			silo.addCameraUnchecked(factory.convert(c));
+		return ordinals(header);
+	}
+
+	/**
+	 * @param header a snapshot's header.
+	 * @return the ordinal in this replica's camera dictionary of each camera observed in the snapshot.
+	 */
+	private int[] ordinals(SnapshotHeader header){
+		int[] ordinals = new int[header.getObservedCamerasCount()];
+		for(int i=0; i<ordinals.length; i++)
+			ordinals[i] = silo.getCameraDictionary().intern(factory.convert(header.getObservedCameras(i)));
+		return ordinals;
+	}
+
+	/**
+	 * Writes a snapshot of the replica's state and deletes the log segments it covers.
+	 * Updates are only held back while the write-ahead log is rolled over; the objects
+	 * are then written from a copy-on-write checkpoint.
+	 */
+	public void checkpoint(){
+		if(wal == null || snapshots == null)
+			return;
+		long start = System.nanoTime();
+		SnapshotHeader.Builder header = SnapshotHeader.newBuilder();
+		Checkpoint cp;
+		stateLock.writeLock().lock();
+		try{
+			header.setLogSegment(wal.rollover());
+			cp = cut(header);
+		}catch(IllegalStateException e){
+			// A snapshot transfer is in progress, and takes the checkpoint once it ends, or the write-ahead log failed
+			logger.log(Level.INFO, "Putting off snapshot: {0}", e.getMessage());
+			checkpointDue.set(true);
+			return;
+		}finally{
+			stateLock.writeLock().unlock();
+		}
+
+		int[] objects = {0};
+		try(cp){
+			try(SnapshotStore.Writer writer = snapshots.create(header.build())){
+				cp.forEachObject(o -> {
+					try{
+						writer.write(factory.snapshot(o));
+						objects[0]++;
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				});
+				writer.commit();
+			}
+			wal.deleteBefore(header.getLogSegment());
+			snapshots.deleteOld();
+		}catch(IOException | UncheckedIOException e){
+			logger.log(Level.SEVERE, "Could not write snapshot: {0}", e.getMessage());
+			return;
+		}
+		logger.log(Level.INFO, "Wrote snapshot of {0} objects in {1} ms. Timestamp: {2}",
+				new Object[]{objects[0], (System.nanoTime() - start) / 1000000, header.getTimestamp().getTimestampList()});
 	}
 
 	@Override
@@ -116,14 +509,19 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
 		// Create camera
 		PersistentCamera c = factory.convert(dataCam);
-		silo.addCameraUnchecked(c);
 		// Create observation
 		PersistentObservation obs = new PersistentObservation(
 				Instant.ofEpochMilli(Timestamps.toMillis(dataObs.getTimestamp())), c);
 		// Add observation to object
 		obj.addObservation(obs);
 		// Add object to the server
-		silo.addObject(obj);
+		stateLock.readLock().lock();
+		try {
+			silo.addCameraUnchecked(c);
+			silo.addObject(obj);
+		} finally {
+			stateLock.readLock().unlock();
+		}
 
 		logger.log(Level.INFO, "Inserted: {0}",obj);
 
@@ -148,7 +546,7 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
 		// Create Timestamp
 		bld.append("Current timestamp: ").append(currentTimestamp).append("\n");
-		Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+		Timestamp timestamp = currentTimestamp.toProto();
 		// Create TraceResponse
 		TraceResponse.Builder response = TraceResponse.newBuilder().setTimestamp(timestamp);
 		try {
@@ -202,16 +600,15 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
 		// Create Timestamp
 		bld.append("Current timestamp: ").append(currentTimestamp).append("\n");
-		Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+		Timestamp timestamp = currentTimestamp.toProto();
 		// Add CompleteObservation and Timestamp to response
 		TrackResponse.Builder response = TrackResponse.newBuilder().setTimestamp(timestamp);
 		try {
 			checkRequest(request);
 
-			PersistentObject obj = silo.getObject(factory.convert(request.getType()), request.getIdentifier());
+			PersistentObservation o = silo.getLatestObservation(factory.convert(request.getType()), request.getIdentifier());
 
-			if (obj != null) {
-				PersistentObservation o = obj.getLatestObservation();
+			if (o != null) {
 
 				// Create Observation
 				Observation observation = Observation.newBuilder().setType(request.getType())
@@ -228,7 +625,7 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 				// Add CompleteObservation and Timestamp to response
 				response.addObservation(completeObservation);
 
-				bld.append("Tracked object with id = ").append(obj.getId());
+				bld.append("Tracked object with id = ").append(request.getIdentifier());
 			}
 
 			logger.info(bld.toString());
@@ -255,7 +652,7 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
 		// Create Timestamp
 		bld.append("Current timestamp: ").append(currentTimestamp).append("\n");
-		Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+		Timestamp timestamp = currentTimestamp.toProto();
 		TrackMatchResponse.Builder response = TrackMatchResponse.newBuilder().setTimestamp(timestamp);
 		try {
 			checkRequest(request);
@@ -268,7 +665,9 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 			bld.append("Track objects with id = {\n");
 
 			for (PersistentObject obj : objs) {
-				PersistentObservation o = obj.getLatestObservation();
+				PersistentObservation o = silo.getLatestObservation(obj.getType(), obj.getId());
+				if (o == null)
+					continue;
 
 				// Create Observation
 				Observation observation = Observation.newBuilder().setType(factory.convert(obj.getType()))
@@ -374,25 +773,41 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 				PersistentCamera camera = silo.getCamera(request.getName());
 				StringBuilder bld = new StringBuilder();
         
-        // Builds a hash map with all received observations and objects
-        // For each observations, adds observation to object and object to map, if not already there
+        // Builds a hash map with all received objects, and the object of each observation
 				Map<String, PersistentObject> parsed = new HashMap<>();
+				List<PersistentObject> sighted = new ArrayList<>();
 				for (Observation o : request.getObservationsList()) {
-					PersistentObservation po = new PersistentObservation(Instant.now(), camera);
+					if (shards > 1 && Shards.of(o.getType(), o.getIdentifier(), shards) != shard) {
+						logger.log(Level.WARNING, "Received report of {0}, held by another shard", o.getIdentifier());
+						responseObserver.onError(INVALID_ARGUMENT
+								.withDescription("Object " + o.getIdentifier() + " is held by another shard").asRuntimeException());
+						return;
+					}
 					if (!parsed.containsKey(o.getIdentifier()))
 						parsed.put(o.getIdentifier(), factory.getObject(o.getType(), o.getIdentifier()));
-					parsed.get(o.getIdentifier()).addObservation(po);
+					sighted.add(parsed.get(o.getIdentifier()));
 				}
-				
-				bld.append("Received observations: ").append(parsed.values());
 
-				if(update(parsed.values().stream().collect(Collectors.toList()), request.getTimestamp().getTimestamp(rID), request.getClientId())){
-					// Records data into server
-					silo.addObjects(parsed);
+				stateLock.readLock().lock();
+				try {
+					update(uid -> {
+						// Observations are told apart from others with the same time and camera by the update that made them
+						long origin = PersistentObservation.origin(rID, uid);
+						for (PersistentObject obj : sighted)
+							obj.addObservation(new PersistentObservation(Instant.now(), camera, origin));
+						// Converted before the objects join the Silo, so that later observations are not included
+						return factory.convert(parsed.values().stream().collect(Collectors.toList()), rID, uid);
+					}, () -> {
+						// Records data into server
+						silo.addObjects(parsed);
+					}, request.getClientId(), VectorClock.get(request.getTimestamp(), rID));
+				} finally {
+					stateLock.readLock().unlock();
 				}
+				bld.append("Received observations: ").append(parsed.values());
 
 				// Create Timestamp
-				Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+				Timestamp timestamp = currentTimestamp.toProto();
 				// Create ReportResponse
 				ReportResponse response = ReportResponse.newBuilder().setTimestamp(timestamp).build();
 				logger.info(bld.toString());
@@ -401,10 +816,14 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 			} catch (SiloException e) {
 				logger.severe(e.getMessage());
 				responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+			} catch (StatusRuntimeException e) {
+				// Not on disk, so not acknowledged
+				responseObserver.onError(e);
 			}
 		}
   }
   
+
   /**
    * Logs in a previously registered camera or registers a new one
    * @param request contains the camera to login/register
@@ -426,12 +845,21 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 			Integer clientId = lastUpdates.size() + 1;
 			bld.append("Generated client id: ").append(clientId);
 	
-			if(silo.addCamera(cam)){
-				update(Arrays.asList(cam), request.getTimestamp().getTimestampList().get(rID), clientId);
+			stateLock.readLock().lock();
+			try {
+				// Joins are checked and made one at a time, so that none is checked against a camera not yet on disk
+				synchronized(joinLock){
+					if(silo.isNewCamera(cam)){
+						update(uid -> factory.convert(Arrays.asList(cam), rID, uid), () -> silo.addCamera(cam),
+								clientId, VectorClock.get(request.getTimestamp(), rID));
+					}
+				}
+			} finally {
+				stateLock.readLock().unlock();
 			}
 
 			// Create Timestamp
-			Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+			Timestamp timestamp = currentTimestamp.toProto();
 			// Create CamJoinResponse
 			CamJoinResponse response = CamJoinResponse.newBuilder().setClientId(clientId).setTimestamp(timestamp).build(); 
 			logger.info(bld.toString());
@@ -440,6 +868,9 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 		} catch (SiloException e) {
 			logger.severe(e.getMessage());
 			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch (StatusRuntimeException e) {
+			// Not on disk, so not acknowledged
+			responseObserver.onError(e);
 		}
 	}
 
@@ -460,7 +891,7 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 
 		if (silo.hasCamera(camName)) {
 			PersistentCamera cam = silo.getCamera(camName);
-			Timestamp timestamp = Timestamp.newBuilder().addAllTimestamp(currentTimestamp).build();
+			Timestamp timestamp = currentTimestamp.toProto();
 			CamInfoResponse response = CamInfoResponse.newBuilder().setCoordinates(
 					Coordinates.newBuilder().setLatitude(cam.getLatitude()).setLongitude(cam.getLongitude()).build())
 					.setTimestamp(timestamp)
@@ -497,97 +928,756 @@ public class SiloServerImpl extends SiloGrpc.SiloImplBase {
 	}
 
 	/**
-	 * Gossip request handler. Compares incoming timestamp with self timestamp
-	 * and replies with updates that sender does not yet have.
+	 * Gossip request handler. Applies the updates pushed by the sender, then compares
+	 * incoming timestamp with self timestamp and streams the updates that sender does
+	 * not yet have, in batches. If some of them are no longer logged, asks the sender
+	 * to load a snapshot instead.
 	 * 
-	 * @param request GossipRequest, contains sender timestamp.
+	 * @param request GossipRequest, contains sender timestamp and pushed updates.
 	 * @param responseObserver stream observer to where we write.
+	 * @see GossipStream
 	 */
 	@Override
 	public void gossip(GossipRequest request, StreamObserver<GossipResponse> responseObserver){
-		List<Integer> timestamp = request.getTimestamp().getTimestampList();
-		List<GossipUpdate> updates = new ArrayList<>();
-
-		// Each position in timestamp corresponds to a ReplicaID.
-		for(int rid=0; rid<timestamp.size(); rid++){
-			// The pair (rid, uid) identifies an update that the sender does not yet have
-			for(int uid = timestamp.get(rid); uid < currentTimestamp.get(rid); uid++){
-				updates.add(factory.convert(updateLog.get(rid).get(uid), rid, uid +1 ));
+		VectorClock timestamp = new VectorClock(request.getTimestamp());
+		int sender = request.hasRid() ? request.getRid().getValue() : -1;
+		VectorClock current;
+		boolean behind = false;
+
+		stateLock.readLock().lock();
+		try{
+			apply(request.getUpdatesList());
+			current = currentTimestamp.snapshot();
+			// Each position in timestamp corresponds to a ReplicaID. Replicas the sender
+			// has not heard of yet count as 0
+			for(int rid=0; rid<current.size() && !behind; rid++)
+				behind = timestamp.get(rid) < updateLog.start(rid);
+		}finally{
+			stateLock.readLock().unlock();
+		}
+
+		if(behind){
+			logger.log(Level.WARNING, "Replica {0} is missing updates that are no longer logged", sender);
+			responseObserver.onNext(GossipResponse.newBuilder().setSnapshot(true).build());
+			responseObserver.onCompleted();
+		}else{
+			ServerCallStreamObserver<GossipResponse> call = (ServerCallStreamObserver<GossipResponse>) responseObserver;
+			GossipStream stream = new GossipStream(call, timestamp, current);
+			call.setOnCancelHandler(stream::cancel);
+			call.setOnReadyHandler(stream);
+			stream.run();
+		}
+		learn(sender, request.getTimestamp());
+	}
+
+	/**
+	 * Reply to a gossip request. Sends the missing updates in batches of bounded size,
+	 * each read from the log only once the requester is ready for it.
+	 */
+	private class GossipStream implements Runnable {
+		private final ServerCallStreamObserver<GossipResponse> call;
+		// Next update id to send of each replica, and the first not to send
+		private final int[] next;
+		private final VectorClock end;
+		private boolean first = true;
+		private boolean done;
+
+		GossipStream(ServerCallStreamObserver<GossipResponse> call, VectorClock from, VectorClock end){
+			this.call = call;
+			this.end = end;
+			next = new int[end.size()];
+			for(int rid=0; rid<next.length; rid++)
+				next[rid] = from.get(rid);
+		}
+
+		/**
+		 * Sends batches while the requester is ready for them.
+		 */
+		@Override
+		public synchronized void run(){
+			while(!done && call.isReady()){
+				GossipResponse.Builder batch = GossipResponse.newBuilder();
+				if(first)
+					batch.setTimestamp(end.toProto());
+				first = false;
+				done = fill(batch);
+				call.onNext(batch.build());
+				if(done)
+					call.onCompleted();
 			}
 		}
 
-		GossipResponse response = GossipResponse.newBuilder().addAllUpdates(updates).build();
-		responseObserver.onNext(response);
-		responseObserver.onCompleted();
+		/**
+		 * Adds the next updates to a batch, up to GOSSIP_BATCH_BYTES.
+		 *
+		 * @return if no updates are left.
+		 */
+		private boolean fill(GossipResponse.Builder batch){
+			int size = 0;
+			stateLock.readLock().lock();
+			try{
+				for(int rid=0; rid<next.length; rid++){
+					for(; next[rid] < end.get(rid); next[rid]++){
+						if(size >= GOSSIP_BATCH_BYTES)
+							return false;
+						GossipUpdate u = updateLog.get(rid, next[rid]);
+						if(u == null){
+							// Truncated by a state transfer since the request arrived
+							batch.clearUpdates().setSnapshot(true);
+							return true;
+						}
+						batch.addUpdates(u);
+						size += u.getSerializedSize();
+					}
+				}
+				return true;
+			}finally{
+				stateLock.readLock().unlock();
+			}
+		}
+
+		synchronized void cancel(){
+			done = true;
+		}
+	}
+
+	/**
+	 * Records a timestamp a peer had, and truncates the update log if possible.
+	 *
+	 * @param peer the peer's instance number, -1 if unknown.
+	 * @param timestamp the peer's timestamp.
+	 */
+	private void learn(int peer, Timestamp timestamp){
+		if(peer < 0 || peer == rID)
+			return;
+		// Timestamps only grow, but messages may arrive out of order. Known clocks are
+		// read without locking, so they are replaced rather than changed.
+		peerTimestamps.compute(peer, (p, known) -> {
+			if(known == null)
+				return new VectorClock(timestamp);
+			if(known.dominates(timestamp))
+				return known;
+			VectorClock max = new VectorClock(known);
+			max.merge(timestamp);
+			return max;
+		});
+		truncate(peer);
+	}
+
+	/**
+	 * Drops the update log entries that every replica already has, once the
+	 * timestamps of all peers currently registered are known. Replicas that
+	 * left are forgotten, and no longer hold the log back.
+	 *
+	 * @param peer the peer whose timestamp was just learned.
+	 */
+	private void truncate(int peer){
+		if(gossip == null)
+			return;
+		Set<Integer> members;
+		try{
+			members = gossip.members();
+		}catch(StatusRuntimeException e){
+			return;
+		}
+		// The list of replicas is older than the peer, so others may have joined too
+		if(!members.contains(peer))
+			return;
+		peerTimestamps.keySet().retainAll(members);
+		if(members.isEmpty() || !peerTimestamps.keySet().containsAll(members))
+			return;
+		stateLock.writeLock().lock();
+		try{
+			for(int rid=0; rid<currentTimestamp.size(); rid++){
+				int seen = currentTimestamp.get(rid);
+				for(VectorClock ts : peerTimestamps.values())
+					seen = Math.min(seen, ts.get(rid));
+				updateLog.truncate(rid, seen);
+			}
+		}finally{
+			stateLock.writeLock().unlock();
+		}
 	}
 
 	/**
-	 * Sends a gossip request to another random replica.
+	 * Exchanges updates with random replicas: pushes the updates each one is known
+	 * to be missing, and pulls the updates this replica is missing.
 	 * 
-	 * @see GossipService#gossip(GossipRequest)
+	 * @return the number of updates pushed and pulled, as a measure of how far apart the replicas were.
+	 * @see GossipService#gossip(java.util.function.Function, java.util.function.BiConsumer)
 	 */
-	public void sendGossip() {
+	public int sendGossip() {
+		if(streaming)
+			subscribe();
+		AtomicBoolean behind = new AtomicBoolean();
+		AtomicInteger exchanged = new AtomicInteger();
 		try{
-			GossipResponse res = gossip.gossip(GossipRequest.newBuilder().setTimestamp(Timestamp.newBuilder().addAllTimestamp(this.currentTimestamp).build()).build());
-			for (GossipUpdate u : res.getUpdatesList()){
-				update(u);
+			gossip.gossip(peer -> {
+				GossipRequest request = gossipRequest(peer);
+				exchanged.addAndGet(request.getUpdatesCount());
+				return request;
+			}, (peer, res) -> {
+				if(res.getSnapshot()){
+					behind.set(true);
+					return;
+				}
+				exchanged.addAndGet(res.getUpdatesCount());
+				stateLock.readLock().lock();
+				try{
+					apply(res.getUpdatesList());
+				}finally{
+					stateLock.readLock().unlock();
+				}
+				if(res.hasTimestamp())
+					learn(peer, res.getTimestamp());
+			});
+		}catch(StatusRuntimeException e){
+			logger.severe(e.getMessage());
+		}
+		if(behind.get())
+			reconcile();
+		return exchanged.get();
+	}
+
+	/**
+	 * @return the number of updates accepted from clients since the replica started.
+	 */
+	public long getClientUpdates(){
+		return clientUpdates.get();
+	}
+
+	/**
+	 * @return the number of updates of every replica still in the update log.
+	 */
+	int getLoggedUpdates(){
+		int n = 0;
+		for(int rid=0; rid<currentTimestamp.size(); rid++)
+			n += currentTimestamp.get(rid) - updateLog.start(rid);
+		return n;
+	}
+
+	/**
+	 * Anti-entropy with a random replica, for when this replica is missing updates that are
+	 * no longer logged. The Merkle trees of both replicas are compared level by level, from the
+	 * root, to find the buckets where they differ. Only the objects in those buckets are exchanged,
+	 * and merged on both sides. This replica then takes on the clock the peer had before the trees
+	 * were compared, as it now has every update the peer had then. Merged observations are not
+	 * logged, so the new state is checkpointed, if persistence is enabled.
+	 *
+	 * @see MerkleTree
+	 */
+	private void reconcile(){
+		long start = System.nanoTime();
+		VectorClock timestamp = new VectorClock(0);
+		List<Integer> buckets = new ArrayList<>();
+		Map<Integer, Integer> clients = new HashMap<>();
+		int sent = 0;
+		int received = 0;
+		try{
+			SiloGrpc.SiloBlockingStub stub = gossip.connectRandom();
+			List<Integer> nodes = Collections.singletonList(0);
+			for(int level=0; level<=MerkleTree.DEPTH && !nodes.isEmpty(); level++){
+				long[] hashes = silo.getMerkleTree().level(level);
+				MerkleRequest.Builder request = MerkleRequest.newBuilder().setLevel(level);
+				for(int node : nodes)
+					request.addNodes(node).addHashes(hashes[node]);
+				MerkleResponse response = stub.withDeadlineAfter(RECONCILE_DEADLINE, TimeUnit.SECONDS).merkle(request.build());
+				if(level == 0)
+					timestamp = new VectorClock(response.getTimestamp());
+				nodes = new ArrayList<>();
+				for(int node : response.getNodesList()){
+					if(level == MerkleTree.DEPTH)
+						buckets.add(node);
+					else
+						for(int child=0; child<MerkleTree.FANOUT; child++)
+							nodes.add(node * MerkleTree.FANOUT + child);
+				}
 			}
+
+			// Called at least once, so that cameras are exchanged even if no objects differ
+			int i = 0;
+			do{
+				Set<Integer> group = new HashSet<>(buckets.subList(i, Math.min(i + RECONCILE_BUCKETS, buckets.size())));
+				ReconcileRequest.Builder request = ReconcileRequest.newBuilder().addAllBuckets(group);
+				for(PersistentObject o : silo.getObjectsInBuckets(group))
+					request.addObjects(factory.convert(o));
+				for(PersistentCamera c : silo.getCameras())
+					request.addCameras(factory.convert(c));
+				ReconcileResponse response = stub.withDeadlineAfter(RECONCILE_DEADLINE, TimeUnit.SECONDS).reconcile(request.build());
+				stateLock.readLock().lock();
+				try{
+					merge(response.getCamerasList(), response.getObjectsList());
+				}finally{
+					stateLock.readLock().unlock();
+				}
+				clients.putAll(response.getLastUpdatesMap());
+				sent += request.getObjectsCount();
+				received += response.getObjectsCount();
+				i += RECONCILE_BUCKETS;
+			}while(i < buckets.size());
 		}catch(StatusRuntimeException e){
+			logger.log(Level.WARNING, "Could not reconcile with another replica: {0}", e.getMessage());
+			return;
+		}
+
+		stateLock.writeLock().lock();
+		try{
+			for(int rid=0; rid<timestamp.size(); rid++){
+				if(timestamp.get(rid) > currentTimestamp.get(rid)){
+					// The updates in between were merged, but are not logged
+					updateLog.reset(rid, timestamp.get(rid));
+					currentTimestamp.set(rid, timestamp.get(rid));
+				}
+			}
+			clients.forEach((cid, uid) -> lastUpdates.merge(cid, uid, Math::max));
+		}finally{
+			stateLock.writeLock().unlock();
+		}
+		logger.log(Level.INFO, "Reconciled {0} of {1} buckets in {2} ms, sending {3} and receiving {4} objects. Current timestamp: {5}",
+				new Object[]{buckets.size(), MerkleTree.BUCKETS, (System.nanoTime() - start) / 1000000, sent, received, currentTimestamp});
+		checkpoint();
+	}
+
+	/**
+	 * Anti-entropy handler. Compares some nodes of a level of the requester's Merkle tree
+	 * with this replica's.
+	 *
+	 * @param request MerkleRequest, contains the requester's hashes.
+	 * @param responseObserver stream observer to where we write.
+	 * @see SiloServerImpl#reconcile()
+	 */
+	@Override
+	public void merkle(MerkleRequest request, StreamObserver<MerkleResponse> responseObserver){
+		if(request.getLevel() < 0 || request.getLevel() > MerkleTree.DEPTH || request.getNodesCount() != request.getHashesCount()){
+			responseObserver.onError(INVALID_ARGUMENT.withDescription("Invalid Merkle tree nodes").asRuntimeException());
+			return;
+		}
+		MerkleResponse.Builder response = MerkleResponse.newBuilder();
+		// Updates are in the Silo before they are counted, so the tree has every update in the timestamp
+		if(request.getLevel() == 0)
+			response.setTimestamp(currentTimestamp.toProto());
+		long[] hashes = silo.getMerkleTree().level(request.getLevel());
+		for(int i=0; i<request.getNodesCount(); i++){
+			int node = request.getNodes(i);
+			if(node >= 0 && node < hashes.length && hashes[node] != request.getHashes(i))
+				response.addNodes(node);
+		}
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Anti-entropy handler. Merges the requester's objects in some buckets of the Merkle tree,
+	 * and replies with this replica's objects in them.
+	 *
+	 * @param request ReconcileRequest, contains the buckets and the requester's objects in them.
+	 * @param responseObserver stream observer to where we write.
+	 * @see SiloServerImpl#reconcile()
+	 */
+	@Override
+	public void reconcile(ReconcileRequest request, StreamObserver<ReconcileResponse> responseObserver){
+		ReconcileResponse.Builder response = ReconcileResponse.newBuilder().putAllLastUpdates(lastUpdates);
+		stateLock.readLock().lock();
+		try{
+			merge(request.getCamerasList(), request.getObjectsList());
+			for(PersistentObject o : silo.getObjectsInBuckets(new HashSet<>(request.getBucketsList())))
+				response.addObjects(factory.convert(o));
+			for(PersistentCamera c : silo.getCameras())
+				response.addCameras(factory.convert(c));
+		}catch(SiloException e){
 			logger.severe(e.getMessage());
+			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+			return;
+		}finally{
+			stateLock.readLock().unlock();
+		}
+		logger.log(Level.INFO, "Reconciled {0} buckets with another replica, receiving {1} and sending {2} objects",
+				new Object[]{request.getBucketsCount(), request.getObjectsCount(), response.getObjectsCount()});
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Merges cameras and objects of another replica into this one's. Observations
+	 * this replica already has are skipped.
+	 *
+	 * @param cameras the other replica's cameras.
+	 * @param objects the other replica's objects.
+	 */
+	private void merge(List<Camera> cameras, List<ReportedObject> objects){
+		for(Camera c : cameras){
+			if(!silo.hasCamera(c.getName()))
+				silo.addCameraUnchecked(factory.convert(c));
+		}
+		for(ReportedObject o : objects)
+			silo.addObject(factory.convert(o));
+	}
+
+	/**
+	 * Replication handler. Sends the client updates of this replica that the subscriber
+	 * does not have yet, then every new one as soon as it is accepted, until the
+	 * subscriber cancels. Updates may be sent out of order, and some twice.
+	 *
+	 * @param request ReplicateRequest, contains subscriber timestamp.
+	 * @param responseObserver stream observer to where we write.
+	 */
+	@Override
+	public void replicate(ReplicateRequest request, StreamObserver<GossipUpdate> responseObserver){
+		ServerCallStreamObserver<GossipUpdate> call = (ServerCallStreamObserver<GossipUpdate>) responseObserver;
+		Deque<GossipUpdate> backlog = new ArrayDeque<>();
+		Subscription subscription;
+		stateLock.readLock().lock();
+		try{
+			// Client updates made before are in the backlog, and those made after are published to the subscriber
+			synchronized(clientLock){
+				int from = VectorClock.get(request.getTimestamp(), rID);
+				for(int uid = Math.max(from, updateLog.start(rID)); uid < currentTimestamp.get(rID); uid++)
+					backlog.add(updateLog.get(rID, uid));
+				subscription = new Subscription(call, backlog);
+				subscribers.add(subscription);
+			}
+		}finally{
+			stateLock.readLock().unlock();
 		}
+		logger.log(Level.INFO, "Replica {0} subscribed", request.getRid());
+
+		call.setOnCancelHandler(() -> {
+			subscription.cancel();
+			subscribers.remove(subscription);
+		});
+		call.setOnReadyHandler(subscription);
+		subscription.run();
 	}
 
 	/**
-	 * Updates timestamp and update log after a client update.
+	 * Subscription of a replica to this replica's client updates. Sends the backlog of
+	 * updates the subscriber was missing, each only once the subscriber is ready for it,
+	 * then new updates as they are made. New updates are queued behind the backlog meanwhile.
+	 */
+	private class Subscription implements Runnable {
+		private final ServerCallStreamObserver<GossipUpdate> call;
+		private final Deque<GossipUpdate> queue;
+		// New updates queued behind the backlog
+		private int queued;
+		private boolean done;
+
+		Subscription(ServerCallStreamObserver<GossipUpdate> call, Deque<GossipUpdate> backlog){
+			this.call = call;
+			queue = backlog;
+		}
+
+		/**
+		 * Sends queued updates while the subscriber is ready for them.
+		 */
+		@Override
+		public synchronized void run(){
+			while(!done && !queue.isEmpty() && call.isReady())
+				call.onNext(queue.poll());
+		}
+
+		/**
+		 * Sends a new update, or queues it behind what is left of the backlog.
+		 *
+		 * @param updt the update.
+		 * @return if the subscriber is kept, or false if it was dropped as too slow, or cancelled.
+		 */
+		synchronized boolean publish(GossipUpdate updt){
+			if(done)
+				return false;
+			try{
+				if(queue.isEmpty() && call.isReady()){
+					call.onNext(updt);
+					return true;
+				}
+				if(!queue.isEmpty() && queued < MAX_QUEUED_UPDATES){
+					queue.add(updt);
+					queued++;
+					return true;
+				}
+				call.onError(Status.RESOURCE_EXHAUSTED.withDescription("Subscriber is too slow").asRuntimeException());
+			}catch(RuntimeException e){
+				// Already cancelled
+			}
+			done = true;
+			return false;
+		}
+
+		synchronized void cancel(){
+			done = true;
+		}
+	}
+
+	/**
+	 * Subscribes to the client updates of every other replica not subscribed to yet.
+	 * Called again every gossip round, to replace broken subscriptions.
+	 *
+	 * @see GossipService#subscribe(java.util.function.Function, java.util.function.BiConsumer)
+	 */
+	public void subscribe(){
+		streaming = true;
+		gossip.subscribe(peer -> {
+			stateLock.readLock().lock();
+			try{
+				return ReplicateRequest.newBuilder().setRid(rID)
+						.setTimestamp(currentTimestamp.toProto()).build();
+			}finally{
+				stateLock.readLock().unlock();
+			}
+		}, (peer, updt) -> receive(updt));
+	}
+
+	/**
+	 * Applies a streamed update once every update before it is applied.
+	 *
+	 * @param updt the update.
+	 */
+	private void receive(GossipUpdate updt){
+		stateLock.readLock().lock();
+		try{
+			synchronized(gossipLock){
+				SortedMap<Integer, GossipUpdate> early = earlyUpdates.computeIfAbsent(updt.getRid(), rid -> new TreeMap<>());
+				early.put(updt.getUid(), updt);
+				while(!early.isEmpty()){
+					int next = currentTimestamp.get(updt.getRid()) + 1;
+					int first = early.firstKey();
+					if(first > next)
+						break;
+					GossipUpdate u = early.remove(first);
+					if(first == next)
+						update(u);
+				}
+				if(early.size() > MAX_EARLY_UPDATES){
+					logger.log(Level.WARNING, "Missing update {0} of replica {1}, leaving it to gossip",
+							new Object[]{currentTimestamp.get(updt.getRid()) + 1, updt.getRid()});
+					early.clear();
+				}
+			}
+		}finally{
+			stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds a gossip request for a peer, with this replica's timestamp and the logged
+	 * updates that are newer than the peer's last known timestamp.
+	 *
+	 * @param peer the peer's instance number.
+	 * @return the request.
+	 */
+	private GossipRequest gossipRequest(int peer){
+		GossipRequest.Builder request = GossipRequest.newBuilder().setRid(Int32Value.of(rID));
+		stateLock.readLock().lock();
+		try{
+			request.setTimestamp(currentTimestamp.toProto());
+			// Nothing is pushed to peers whose timestamp is not known yet
+			VectorClock known = peerTimestamps.get(peer);
+			for(int rid=0; known != null && rid<currentTimestamp.size(); rid++){
+				// The peer misses updates that are no longer logged, and the reply will tell it to reconcile.
+				// Pushing the later ones would only have them dropped
+				if(known.get(rid) < updateLog.start(rid))
+					continue;
+				for(int uid = known.get(rid); uid < currentTimestamp.get(rid); uid++)
+					request.addUpdates(updateLog.get(rid, uid));
+			}
+		}finally{
+			stateLock.readLock().unlock();
+		}
+		return request.build();
+	}
+
+	/**
+	 * Applies updates received from another replica.
+	 *
+	 * @param updates the updates, in the order they were logged.
+	 */
+	private void apply(List<GossipUpdate> updates){
+		synchronized(gossipLock){
+			for (GossipUpdate u : updates){
+				update(u);
+			}
+		}
+	}
+
+	/**
+	 * Records a client update id, unless the client already sent it.
 	 * 
-	 * @param updt Received update.
+	 * @param Cid Client id.
 	 * @param Uid Client side update id of received update.
+	 * @return the client's previous update id, 0 if none, or -1 if the update is repeated.
+	 */
+	private int accept(int Cid, int Uid){
+		int[] previous = {-1};
+		lastUpdates.compute(Cid, (cid, last) -> {
+			if(last != null && last >= Uid)
+				return last;
+			previous[0] = last == null ? 0 : last;
+			return Uid;
+		});
+		return previous[0];
+	}
+
+	/**
+	 * Takes back a client update id recorded by accept, so that the client may send it again.
+	 * 
 	 * @param Cid Client id.
-	 * @return if the update is new (true) or repeated (false)
+	 * @param Uid Client side update id of the update.
+	 * @param previous the client's previous update id, as returned by accept.
 	 */
-	private boolean update(List<GossipTarget> updt, int Uid, int Cid){
-		if(lastUpdates.get(Cid)!= null && lastUpdates.get(Cid) >= Uid)
-			return false;
-		
-		lastUpdates.put(Cid, Uid);
-		
-		currentTimestamp.set(rID, currentTimestamp.get(rID) + 1);
+	private void reject(int Cid, int Uid, int previous){
+		// Kept at 0 rather than removed, as new client ids are taken from the number of clients
+		lastUpdates.computeIfPresent(Cid, (cid, last) -> last == Uid ? previous : last);
+	}
+
+	/**
+	 * Numbers a new client update and makes its changes, once it is on disk. Only numbering
+	 * and logging the update are serialized, so that the write-ahead log holds this replica's
+	 * updates in update id order, and the wait for the disk is shared by concurrent updates.
+	 * Updates then reach the Silo, update log and timestamp in update id order.
+	 * Repeated client updates are ignored.
+	 * 
+	 * @param delta Returns what the update with the given id adds, without changing the Silo.
+	 * @param apply Makes the changes of the update to the Silo.
+	 * @param Cid Client id.
+	 * @param Uid Client side update id of received update.
+	 * @throws StatusRuntimeException INTERNAL if the update could not be written to disk. It is then
+	 * neither made nor recorded as received from the client.
+	 */
+	private void update(IntFunction<GossipUpdate> delta, Runnable apply, int Cid, int Uid){
+		int previous = accept(Cid, Uid);
+		if(previous < 0)
+			return;
+		CompletableFuture<Void> logged = null;
+		GossipUpdate updt;
+		int uid;
+		synchronized(clientLock){
+			// Numbered after those still waiting for the disk
+			uid = currentTimestamp.get(rID) + pending + 1;
+			pending++;
+			updt = delta.apply(uid).toBuilder().setUid(uid).build();
+			// Appended in order, so that replaying the log applies this replica's updates in order
+			if(wal != null)
+				logged = log(updt, Cid, Uid);
+		}
+
+		if(logged != null){
+			// Client updates are only made and acknowledged once they are on disk
+			try{
+				logged.join();
+			}catch(CompletionException e){
+				// The log fails every later update too, so none waits for this one below
+				logger.log(Level.SEVERE, "Could not persist update: {0}", e.getCause().getMessage());
+				synchronized(clientLock){
+					pending--;
+				}
+				reject(Cid, Uid, previous);
+				throw INTERNAL.withDescription("Could not persist update").asRuntimeException();
+			}
+		}
 
-		updateLog.get(rID).add(updt);
+		synchronized(clientLock){
+			boolean interrupted = false;
+			while(currentTimestamp.get(rID) < uid - 1){
+				try{
+					clientLock.wait();
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+			try{
+				apply.run();
+			}finally{
+				updateLog.set(rID, uid - 1, updt);
+				currentTimestamp.advance(rID, uid);
+				pending--;
+				clientLock.notifyAll();
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+		clientUpdates.incrementAndGet();
 		logger.log(Level.INFO, "New timestamp: {0}", currentTimestamp);
-		return true;
+		publish(updt);
+	}
+
+	/**
+	 * Streams a client update to every subscribed replica. Subscribers that cannot
+	 * keep up are dropped; they catch up once they subscribe again.
+	 *
+	 * @param updt the update.
+	 */
+	private void publish(GossipUpdate updt){
+		for(Subscription s : subscribers){
+			if(!s.publish(updt))
+				subscribers.remove(s);
+		}
 	}
 
 	/**
-	 * Adds missing updates to Silo and update log after a gossip response.
+	 * Adds missing updates to Silo, update log and write-ahead log after a gossip response.
 	 * 
 	 * @param updt Received update.
 	 */
 	private void update(GossipUpdate updt){
-		StringBuilder bld = new StringBuilder();
-		if(currentTimestamp.get(updt.getRid()) >= updt.getUid()){
-			logger.info("Update already inserted.");
-			return;
-		}
-		
-		List<GossipTarget> update = new ArrayList<>();
-		currentTimestamp.set(updt.getRid(), updt.getUid());
-		if(updt.hasCamera()){
-			PersistentCamera c = factory.convert(updt.getCamera()); 
-			silo.addCamera(c);
-			bld.append("Recevied cam_join update: ").append(c);
-			update.add(c);
-		}else if (updt.hasObjects()){
-			for (ReportedObject o : updt.getObjects().getObjectsList()){
-				PersistentObject obj = factory.convert(o);
-				silo.addObject(obj);
-				update.add(obj);
+		if(apply(updt) && wal != null)
+			log(updt, 0, 0);
+	}
+
+	/**
+	 * Adds an update to Silo and update log, if it is the next one of its replica.
+	 * Repeated updates are ignored, and so are those after a missing one, which gossip
+	 * will send again once the missing one is applied.
+	 * 
+	 * @param updt Update to apply.
+	 * @return if the update was applied (true) or dropped (false)
+	 */
+	private boolean apply(GossipUpdate updt){
+		// Own updates, when replayed or received back, must not race with new client updates
+		synchronized(updt.getRid() == rID ? clientLock : gossipLock){
+			StringBuilder bld = new StringBuilder();
+			int current = currentTimestamp.get(updt.getRid());
+			if(current >= updt.getUid()){
+				logger.info("Update already inserted.");
+				return false;
 			}
-			bld.append("Received report update: ").append(update);
+			if(updt.getUid() > current + 1){
+				logger.log(Level.WARNING, "Dropping update {0} of replica {1}, missing updates {2} to {3}",
+						new Object[]{updt.getUid(), updt.getRid(), current + 1, updt.getUid() - 1});
+				return false;
+			}
+			
+			List<GossipTarget> update = new ArrayList<>();
+			if(updt.hasCamera()){
+				PersistentCamera c = factory.convert(updt.getCamera()); 
+				silo.addCamera(c);
+				bld.append("Recevied cam_join update: ").append(c);
+			}else if (updt.hasObjects()){
+				for (ReportedObject o : updt.getObjects().getObjectsList()){
+					PersistentObject obj = factory.convert(o);
+					silo.addObject(obj);
+					update.add(obj);
+				}
+				bld.append("Received report update: ").append(update);
+			}
+			updateLog.set(updt.getRid(), updt.getUid() - 1, updt);
+			currentTimestamp.advance(updt.getRid(), updt.getUid());
+			bld.append("\n").append("New timestamp: ").append(currentTimestamp);
+			logger.info(bld.toString());
+			return true;
 		}
-		updateLog.get(updt.getRid()).add(update);
-		bld.append("\n").append("New timestamp: ").append(currentTimestamp);
-		logger.info(bld.toString());
+	}
 
+	/**
+	 * Queues an applied update to be written to the write-ahead log.
+	 * 
+	 * @param updt the update.
+	 * @param Cid Client id, 0 if the update came from another replica.
+	 * @param Uid Client side update id, 0 if the update came from another replica.
+	 * @return a future completed once the update is on disk.
+	 */
+	private CompletableFuture<Void> log(GossipUpdate updt, int Cid, int Uid){
+		LogEntry entry = LogEntry.newBuilder().setUpdate(updt)
+				.setTimestamp(currentTimestamp.toProto())
+				.setClientId(Cid).setClientUpdate(Uid).build();
+		return wal.append(entry);
 	}
-}
+}
\ No newline at end of file
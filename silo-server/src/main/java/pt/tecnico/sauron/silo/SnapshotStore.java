@@ -0,0 +1,146 @@
+package pt.tecnico.sauron.silo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.SnapshotHeader;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.SnapshotObject;
+
+/**
+ * Snapshot files of a replica's state, named after the first write-ahead log segment
+ * they do not cover. Each file holds a SnapshotHeader followed by SnapshotObjects.
+ */
+public class SnapshotStore {
+  private static final String PREFIX = "snap-";
+  private static final String SUFFIX = ".bin";
+  private static final String TEMP = ".tmp";
+
+  private final Path dir;
+
+  /**
+   * Snapshot being written. Only becomes visible once committed.
+   */
+  public class Writer implements AutoCloseable {
+    private final Path temp;
+    private final Path target;
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private boolean committed;
+
+    private Writer(SnapshotHeader header) throws IOException {
+      target = dir.resolve(name(header.getLogSegment()));
+      temp = dir.resolve(name(header.getLogSegment()) + TEMP);
+      file = new FileOutputStream(temp.toFile());
+      out = new BufferedOutputStream(file);
+      header.writeDelimitedTo(out);
+    }
+
+    public void write(SnapshotObject o) throws IOException {
+      o.writeDelimitedTo(out);
+    }
+
+    /**
+     * Syncs the snapshot to disk and atomically makes it the latest one.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+      out.flush();
+      file.getFD().sync();
+      out.close();
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+    }
+
+    /**
+     * Discards the snapshot, unless it was committed.
+     */
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        out.close();
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * @param dir directory where snapshots are kept. Created if it does not exist.
+   * @throws IOException
+   */
+  public SnapshotStore(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+  }
+
+  /**
+   * Starts a new snapshot.
+   *
+   * @param header the snapshot's header.
+   * @return a writer for the snapshot's objects.
+   * @throws IOException
+   */
+  public Writer create(SnapshotHeader header) throws IOException {
+    return new Writer(header);
+  }
+
+  /**
+   * Reads the latest snapshot, if there is one.
+   *
+   * @param header called with the snapshot's header.
+   * @param objects called with each of the snapshot's objects.
+   * @return if a snapshot was read.
+   * @throws IOException
+   */
+  public boolean readLatest(Consumer<SnapshotHeader> header, Consumer<SnapshotObject> objects) throws IOException {
+    List<Path> snapshots = snapshots();
+    if (snapshots.isEmpty()) {
+      return false;
+    }
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshots.get(snapshots.size() - 1)))) {
+      header.accept(SnapshotHeader.parseDelimitedFrom(in));
+      SnapshotObject o;
+      while ((o = SnapshotObject.parseDelimitedFrom(in)) != null) {
+        objects.accept(o);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Deletes every snapshot older than the latest one.
+   *
+   * @throws IOException
+   */
+  public void deleteOld() throws IOException {
+    List<Path> snapshots = snapshots();
+    for (int i = 0; i < snapshots.size() - 1; i++) {
+      Files.delete(snapshots.get(i));
+    }
+  }
+
+  private static String name(long segment) {
+    return String.format("%s%08d%s", PREFIX, segment, SUFFIX);
+  }
+
+  /**
+   * @return every committed snapshot, oldest first.
+   */
+  private List<Path> snapshots() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(f -> f.getFileName().toString().startsWith(PREFIX) && f.getFileName().toString().endsWith(SUFFIX))
+          .sorted().collect(Collectors.toList());
+    }
+  }
+}
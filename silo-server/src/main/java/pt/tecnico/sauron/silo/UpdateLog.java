@@ -0,0 +1,83 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.GossipUpdate;
+
+/**
+ * Updates of every replica, in the order each replica accepted them. An update is
+ * stored at its position in that order (its id minus one), written once and read
+ * without locking. Positions are kept in fixed-size segments, so appending never
+ * copies older entries. Positions before a replica's start are no longer logged.
+ * Callers must not truncate or reset a replica's updates while they are read.
+ * Replicas are added as their first update is stored, so any may join at any time.
+ */
+public class UpdateLog {
+  private static final int SEGMENT_BITS = 10;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  // Stands for replicas with no updates stored
+  private static final Replica EMPTY = new Replica();
+
+  // By instance number
+  private final Map<Integer, Replica> replicas = new ConcurrentHashMap<>();
+
+  private static class Replica {
+    private final Map<Integer, AtomicReferenceArray<GossipUpdate>> segments = new ConcurrentHashMap<>();
+    private volatile int start;
+  }
+
+  private Replica replica(int rid) {
+    return replicas.getOrDefault(rid, EMPTY);
+  }
+
+  /**
+   * @return the position of the first update of a replica still logged.
+   */
+  public int start(int rid) {
+    return replica(rid).start;
+  }
+
+  /**
+   * @return the update of a replica at a position, or null if it is not logged.
+   */
+  public GossipUpdate get(int rid, int position) {
+    Replica r = replica(rid);
+    if (position < r.start) {
+      return null;
+    }
+    AtomicReferenceArray<GossipUpdate> segment = r.segments.get(position >>> SEGMENT_BITS);
+    return segment == null ? null : segment.get(position & (SEGMENT_SIZE - 1));
+  }
+
+  /**
+   * Stores an update of a replica at its position.
+   */
+  public void set(int rid, int position, GossipUpdate updt) {
+    replicas.computeIfAbsent(rid, id -> new Replica()).segments.computeIfAbsent(position >>> SEGMENT_BITS, s -> new AtomicReferenceArray<>(SEGMENT_SIZE))
+        .set(position & (SEGMENT_SIZE - 1), updt);
+  }
+
+  /**
+   * Drops the updates of a replica before a position.
+   */
+  public void truncate(int rid, int before) {
+    Replica r = replicas.computeIfAbsent(rid, id -> new Replica());
+    if (before <= r.start) {
+      return;
+    }
+    r.start = before;
+    r.segments.keySet().removeIf(s -> (s + 1) << SEGMENT_BITS <= before);
+  }
+
+  /**
+   * Drops every update of a replica, so that its log starts again at a position.
+   */
+  public void reset(int rid, int start) {
+    Replica r = replicas.computeIfAbsent(rid, id -> new Replica());
+    r.segments.clear();
+    r.start = start;
+  }
+}
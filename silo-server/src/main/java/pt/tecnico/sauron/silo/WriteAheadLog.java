@@ -0,0 +1,344 @@
+package pt.tecnico.sauron.silo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.LogEntry;
+
+/**
+ * Append-only log of accepted updates, split into numbered segment files.
+ * Entries are written by a single thread which syncs once per batch, so that
+ * concurrent appends share the cost of each fsync. Once a write fails, every later
+ * entry fails too, as what reached the disk is unknown; the entries acknowledged are
+ * then always a prefix of those appended.
+ */
+public class WriteAheadLog {
+  private static final String PREFIX = "wal-";
+  private static final String SUFFIX = ".log";
+  // Segments are rolled over once they reach this size
+  private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+  // Maximum number of entries written per fsync
+  private static final int MAX_BATCH = 1024;
+
+  private final Path dir;
+  private final BlockingQueue<PendingEntry> queue = new LinkedBlockingQueue<>();
+  private FileChannel channel;
+  private volatile long segment;
+  private Thread writer;
+  private volatile boolean running;
+  // First write that failed, after which nothing else is written
+  private volatile IOException failure;
+
+  private Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+  // Entry is null for segment rollover requests
+  private static class PendingEntry {
+    private final LogEntry entry;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    PendingEntry(LogEntry entry) {
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * @param dir directory where segments are kept. Created if it does not exist.
+   * @throws IOException
+   */
+  public WriteAheadLog(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+  }
+
+  /**
+   * Reads every entry in the log, in the order they were appended. A partially
+   * written entry at the end of the last segment is discarded.
+   * Must be called before start.
+   *
+   * @param consumer called with each entry.
+   * @return the number of entries read.
+   * @throws IOException
+   */
+  public int replay(Consumer<LogEntry> consumer) throws IOException {
+    return replay(0, consumer);
+  }
+
+  /**
+   * Reads every entry from a given segment onwards, in the order they were appended.
+   *
+   * @param from first segment to read.
+   * @param consumer called with each entry.
+   * @return the number of entries read.
+   * @throws IOException
+   * @see WriteAheadLog#replay(Consumer)
+   */
+  public int replay(long from, Consumer<LogEntry> consumer) throws IOException {
+    List<Path> segments = segments();
+    int count = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      if (number(segments.get(i)) >= from) {
+        count += replay(segments.get(i), consumer, i == segments.size() - 1);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads a segment through a memory mapping.
+   */
+  private int replay(Path file, Consumer<LogEntry> consumer, boolean last) throws IOException {
+    int count = 0;
+    long valid = 0;
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = ch.size();
+      if (size == 0) {
+        return 0;
+      }
+      MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      CodedInputStream in = CodedInputStream.newInstance(buffer);
+      try {
+        while (!in.isAtEnd()) {
+          int length = in.readRawVarint32();
+          if (length > size - in.getTotalBytesRead()) {
+            throw new InvalidProtocolBufferException("Truncated log entry");
+          }
+          int oldLimit = in.pushLimit(length);
+          LogEntry entry = LogEntry.parseFrom(in);
+          in.popLimit(oldLimit);
+          consumer.accept(entry);
+          valid = in.getTotalBytesRead();
+          count++;
+        }
+      } catch (InvalidProtocolBufferException e) {
+        if (!last) {
+          throw e;
+        }
+        logger.log(Level.WARNING, "Discarding torn log tail of {0} at byte {1}", new Object[] { file, valid });
+        ch.truncate(valid);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Opens a new segment for writing and starts the writer thread.
+   *
+   * @throws IOException
+   */
+  public synchronized void start() throws IOException {
+    List<Path> segments = segments();
+    segment = segments.isEmpty() ? 0 : number(segments.get(segments.size() - 1)) + 1;
+    openSegment();
+    running = true;
+    writer = new Thread(this::writeLoop, "wal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues an entry to be written.
+   *
+   * @param entry the entry.
+   * @return a future completed once the entry is on disk, or exceptionally if it could not be written.
+   */
+  public CompletableFuture<Void> append(LogEntry entry) {
+    PendingEntry pending = new PendingEntry(entry);
+    if (!running) {
+      pending.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+      return pending.done;
+    }
+    if (failure != null) {
+      pending.done.completeExceptionally(failure);
+      return pending.done;
+    }
+    queue.add(pending);
+    return pending.done;
+  }
+
+  /**
+   * Closes the current segment once every entry queued so far is written, so that
+   * later entries go to a new one.
+   *
+   * @return the number of the segment new entries are written to.
+   */
+  public long rollover() {
+    if (!running) {
+      throw new IllegalStateException("Write-ahead log is closed");
+    }
+    if (failure != null) {
+      throw new IllegalStateException("Write-ahead log failed");
+    }
+    PendingEntry pending = new PendingEntry(null);
+    queue.add(pending);
+    pending.done.join();
+    return segment;
+  }
+
+  /**
+   * Deletes every segment before a given one.
+   *
+   * @param before first segment to keep.
+   * @throws IOException
+   */
+  public void deleteBefore(long before) throws IOException {
+    for (Path p : segments()) {
+      if (number(p) < before) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  /**
+   * Writes every queued entry, stops the writer thread and closes the log.
+   */
+  public synchronized void close() {
+    running = false;
+    try {
+      if (writer != null) {
+        writer.join();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.severe(e.getMessage());
+    }
+  }
+
+  private void writeLoop() {
+    List<PendingEntry> batch = new ArrayList<>(MAX_BATCH);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH - 1);
+        write(batch, bytes);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes and syncs a batch of entries, then completes their futures.
+   * Rollover requests split the batch.
+   */
+  private void write(List<PendingEntry> batch, ByteArrayOutputStream bytes) {
+    int start = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.get(i).entry == null) {
+        sync(batch.subList(start, i), bytes);
+        roll(batch.get(i));
+        start = i + 1;
+      }
+    }
+    sync(batch.subList(start, batch.size()), bytes);
+  }
+
+  private void sync(List<PendingEntry> entries, ByteArrayOutputStream bytes) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    if (failure != null) {
+      for (PendingEntry p : entries) {
+        p.done.completeExceptionally(failure);
+      }
+      return;
+    }
+    try {
+      bytes.reset();
+      for (PendingEntry p : entries) {
+        p.entry.writeDelimitedTo(bytes);
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+      for (PendingEntry p : entries) {
+        p.done.complete(null);
+      }
+      if (channel.size() >= SEGMENT_SIZE) {
+        nextSegment();
+      }
+    } catch (IOException e) {
+      logger.severe(e.getMessage());
+      failure = e;
+      for (PendingEntry p : entries) {
+        p.done.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void roll(PendingEntry request) {
+    if (failure != null) {
+      request.done.completeExceptionally(failure);
+      return;
+    }
+    try {
+      // An empty segment already follows every written entry
+      if (channel.size() > 0) {
+        nextSegment();
+      }
+      request.done.complete(null);
+    } catch (IOException e) {
+      logger.severe(e.getMessage());
+      failure = e;
+      request.done.completeExceptionally(e);
+    }
+  }
+
+  private void nextSegment() throws IOException {
+    channel.close();
+    segment++;
+    openSegment();
+  }
+
+  private void openSegment() throws IOException {
+    channel = FileChannel.open(dir.resolve(String.format("%s%08d%s", PREFIX, segment, SUFFIX)),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * @return every segment file, oldest first.
+   */
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(f -> f.getFileName().toString().startsWith(PREFIX) && f.getFileName().toString().endsWith(SUFFIX))
+          .sorted((a, b) -> Long.compare(number(a), number(b))).collect(Collectors.toList());
+    }
+  }
+
+  private static long number(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+}
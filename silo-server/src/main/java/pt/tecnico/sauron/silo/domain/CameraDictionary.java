@@ -0,0 +1,83 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Interns cameras to small int ordinals, so that observations can refer to them
+ * without holding a reference each. Cameras are identified by name and coordinates,
+ * as the same name may stand for a camera that joined again elsewhere, after the
+ * state was cleared. Ordinals are never reused.
+ */
+public class CameraDictionary {
+
+    // Ordinals of the cameras with each name, oldest first. Replaced, never modified
+    private final Map<String, int[]> ordinals = new ConcurrentHashMap<>();
+    private final List<PersistentCamera> cameras = new CopyOnWriteArrayList<>();
+
+    /**
+     * Getter for the ordinal of a camera, assigning a new one if the camera is unknown.
+     * @param c camera to be interned.
+     * @return the camera's ordinal.
+     */
+    public int intern(PersistentCamera c) {
+        int ordinal = find(c, ordinals.get(c.getName()));
+        if (ordinal >= 0) {
+            return ordinal;
+        }
+        synchronized (cameras) {
+            int[] known = ordinals.get(c.getName());
+            ordinal = find(c, known);
+            if (ordinal >= 0) {
+                return ordinal;
+            }
+            cameras.add(c);
+            ordinal = cameras.size() - 1;
+            int[] updated = known == null ? new int[1] : Arrays.copyOf(known, known.length + 1);
+            updated[updated.length - 1] = ordinal;
+            ordinals.put(c.getName(), updated);
+            return ordinal;
+        }
+    }
+
+    /**
+     * @return the ordinal of the camera with the coordinates of c among some with its name, or -1 if none.
+     */
+    private int find(PersistentCamera c, int[] known) {
+        if (known == null) {
+            return -1;
+        }
+        for (int ordinal : known) {
+            PersistentCamera k = cameras.get(ordinal);
+            if (Float.compare(k.getLatitude(), c.getLatitude()) == 0
+                    && Float.compare(k.getLongitude(), c.getLongitude()) == 0) {
+                return ordinal;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Getter for an interned camera.
+     * @param ordinal ordinal returned by intern.
+     * @return the camera.
+     */
+    public PersistentCamera get(int ordinal) {
+        return cameras.get(ordinal);
+    }
+
+    /**
+     * @return every interned camera, indexed by ordinal.
+     */
+    public List<PersistentCamera> getCameras() {
+        return new ArrayList<>(cameras);
+    }
+
+    public int size() {
+        return cameras.size();
+    }
+}
@@ -0,0 +1,135 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Point-in-time view of the objects in a Silo, read while the Silo keeps changing.
+ * Objects written to before being read are copied first (copy-on-write), and objects
+ * created after the checkpoint began are left out.
+ */
+public class Checkpoint implements AutoCloseable {
+
+    private final Silo silo;
+    private final int epoch;
+    private final List<PersistentCamera> cameras;
+    private final List<PersistentCamera> observedCameras;
+    // State of objects that were written to before being read
+    private final Map<PersistentObject, PersistentObject> copies = new ConcurrentHashMap<>();
+
+    Checkpoint(Silo silo, int epoch) {
+        this.silo = silo;
+        this.epoch = epoch;
+        this.cameras = new ArrayList<>(silo.getCameras());
+        this.observedCameras = silo.getCameraDictionary().getCameras();
+    }
+
+    /**
+     * @return the cameras registered when the checkpoint began.
+     */
+    public Collection<PersistentCamera> getCameras() {
+        return cameras;
+    }
+
+    /**
+     * @return the camera dictionary when the checkpoint began, indexed by ordinal.
+     */
+    public List<PersistentCamera> getObservedCameras() {
+        return observedCameras;
+    }
+
+    /**
+     * Visits every object as it was when the checkpoint began.
+     * @param consumer called with a private copy of each object.
+     */
+    public void forEachObject(Consumer<PersistentObject> consumer) {
+        objects().forEachRemaining(consumer);
+    }
+
+    /**
+     * Iterates over every object as it was when the checkpoint began, copying each
+     * one only when it is reached, so that the objects can be read a few at a time.
+     * @return an iterator over private copies of the objects.
+     */
+    public Iterator<PersistentObject> objects() {
+        Iterator<PersistentObject> objects = silo.getObjects().iterator();
+        return new Iterator<PersistentObject>() {
+            private PersistentObject next = advance();
+
+            private PersistentObject advance() {
+                while (objects.hasNext()) {
+                    PersistentObject state = state(objects.next());
+                    if (state != null) {
+                        return state;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public PersistentObject next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                PersistentObject res = next;
+                next = advance();
+                return res;
+            }
+        };
+    }
+
+    /**
+     * @return a private copy of an object as it was when the checkpoint began, or null if it was created after.
+     */
+    private PersistentObject state(PersistentObject o) {
+        synchronized (o) {
+            if (o.checkpoint < epoch) {
+                o.checkpoint = epoch;
+                return o.copy();
+            }
+            // Either copied on write, or created after the checkpoint began
+            return copies.remove(o);
+        }
+    }
+
+    /**
+     * Called by the Silo before an existing object is written to.
+     */
+    void beforeWrite(PersistentObject o) {
+        synchronized (o) {
+            if (o.checkpoint < epoch) {
+                copies.put(o, o.copy());
+                o.checkpoint = epoch;
+            }
+        }
+    }
+
+    /**
+     * Called by the Silo before a new object is added.
+     */
+    void beforeCreate(PersistentObject o) {
+        synchronized (o) {
+            o.checkpoint = epoch;
+        }
+    }
+
+    /**
+     * Ends the checkpoint. Objects are no longer copied on write.
+     */
+    @Override
+    public void close() {
+        silo.endCheckpoint(this);
+        copies.clear();
+    }
+}
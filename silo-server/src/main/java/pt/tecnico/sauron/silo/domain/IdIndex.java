@@ -0,0 +1,123 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Searchable index over the ids of one object type. Answers id patterns made of literals
+ * and `.*` wildcards with a narrowed set of candidate ids, which must still be matched
+ * against the full pattern.
+ */
+class IdIndex {
+
+    private static final String WILDCARD = ".*";
+    private static final String METACHARS = "\\^$.|?*+()[]{}";
+    private static final int GRAM = 3;
+
+    private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+    // Ids written backwards, for suffix lookups
+    private final NavigableSet<String> reversedIds = new ConcurrentSkipListSet<>();
+    // Every id containing a given substring of size GRAM, for infix lookups. Null if disabled
+    private final Map<String, Set<String>> grams;
+
+    /**
+     * @param nGrams if infix lookups should be indexed. Meant for short ids, like car plates.
+     */
+    IdIndex(boolean nGrams) {
+        grams = nGrams ? new ConcurrentHashMap<>() : null;
+    }
+
+    void add(String id) {
+        ids.add(id);
+        reversedIds.add(reverse(id));
+        if (grams != null) {
+            for (int i = 0; i + GRAM <= id.length(); i++) {
+                grams.computeIfAbsent(id.substring(i, i + GRAM), k -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+        }
+    }
+
+    void clear() {
+        ids.clear();
+        reversedIds.clear();
+        if (grams != null) {
+            grams.clear();
+        }
+    }
+
+    /**
+     * Narrows down the ids that may match a pattern, using its literal prefix, suffix or
+     * infix. Patterns with no usable literal part, or with regex constructs other than `.*`,
+     * fall back to every indexed id.
+     * @param pattern id pattern.
+     * @return candidate ids.
+     */
+    Collection<String> candidates(String pattern) {
+        List<String> literals = literals(pattern);
+        if (literals == null) {
+            return ids;
+        }
+        if (literals.size() == 1) {
+            // No wildcards, exact match
+            String id = literals.get(0);
+            return ids.contains(id) ? Collections.singletonList(id) : Collections.emptyList();
+        }
+
+        String prefix = literals.get(0);
+        String suffix = literals.get(literals.size() - 1);
+        if (!prefix.isEmpty() && prefix.length() >= suffix.length()) {
+            return ids.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+        }
+        if (!suffix.isEmpty()) {
+            List<String> res = new ArrayList<>();
+            String rSuffix = reverse(suffix);
+            for (String r : reversedIds.subSet(rSuffix, true, rSuffix + Character.MAX_VALUE, false)) {
+                res.add(reverse(r));
+            }
+            return res;
+        }
+        if (grams != null) {
+            for (String infix : literals) {
+                if (infix.length() >= GRAM) {
+                    return grams.getOrDefault(infix.substring(0, GRAM), Collections.emptySet());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Splits a pattern around its `.*` wildcards. The first element is the literal prefix and
+     * the last one the literal suffix, both possibly empty.
+     * @return the literal parts, or null if the pattern uses any other regex construct.
+     */
+    private static List<String> literals(String pattern) {
+        List<String> res = new ArrayList<>();
+        StringBuilder bld = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            if (pattern.startsWith(WILDCARD, i)) {
+                res.add(bld.toString());
+                bld.setLength(0);
+                i += WILDCARD.length();
+            } else if (METACHARS.indexOf(pattern.charAt(i)) >= 0) {
+                return null;
+            } else {
+                bld.append(pattern.charAt(i++));
+            }
+        }
+        res.add(bld.toString());
+        return res;
+    }
+
+    private static String reverse(String s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+}
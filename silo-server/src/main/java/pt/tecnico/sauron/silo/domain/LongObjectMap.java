@@ -0,0 +1,166 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Concurrent hash map from primitive long keys to objects. Open addressing with linear
+ * probing, split into independently locked segments. Keys must be non-negative and
+ * entries are never removed one by one, only cleared all at once.
+ * @param <V> type of the values.
+ */
+class LongObjectMap<V> {
+
+    private static final long EMPTY = -1L;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param expectedSize number of entries to size the map for.
+     * @param concurrency number of segments. Rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LongObjectMap(int expectedSize, int concurrency) {
+        int nSegments = concurrency <= 1 ? 1 : Integer.highestOneBit(concurrency - 1) << 1;
+        segmentShift = 32 - Integer.numberOfTrailingZeros(nSegments);
+        segments = new Segment[nSegments];
+        int perSegment = (int) (expectedSize / nSegments / LOAD_FACTOR) + 1;
+        for (int i = 0; i < nSegments; i++) {
+            segments[i] = new Segment<>(Integer.highestOneBit(Math.max(2, perSegment - 1)) << 1);
+        }
+    }
+
+    V get(long key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    /**
+     * Associates a value with a key, unless the key is already present.
+     * @return the previous value, or null if the value was inserted.
+     */
+    V putIfAbsent(long key, V value) {
+        int h = hash(key);
+        return segmentFor(h).putIfAbsent(key, value, h);
+    }
+
+    /**
+     * @return a snapshot of every value in the map.
+     */
+    List<V> values() {
+        List<V> res = new ArrayList<>();
+        for (Segment<V> s : segments) {
+            s.collect(res);
+        }
+        return res;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment<V> s : segments) {
+            s.clear();
+        }
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        // Segments use the top bits of the hash, slots inside a segment use the bottom ones
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment<V> {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        synchronized V get(long key, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return value(i);
+                }
+            }
+            return null;
+        }
+
+        synchronized V putIfAbsent(long key, V value, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return value(i);
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length * LOAD_FACTOR) {
+                rehash(keys.length << 1);
+            }
+            return null;
+        }
+
+        synchronized void collect(List<V> res) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    res.add(value(i));
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(keys, EMPTY);
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V value(int i) {
+            return (V) values[i];
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            values = new Object[capacity];
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            allocate(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != EMPTY) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
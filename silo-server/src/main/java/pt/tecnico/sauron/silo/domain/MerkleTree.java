@@ -0,0 +1,102 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over a Silo's objects, used to find where two replicas differ without
+ * comparing every object. Objects are bucketed by a hash of their type and id. Each
+ * bucket holds the sum of a digest of every observation in it, so observations are
+ * added in constant time and in any order. Inner nodes, with FANOUT children each,
+ * are only hashed when a level is read.
+ */
+public class MerkleTree {
+
+    public static final int FANOUT = 16;
+    // Level of the buckets. The root is level 0
+    public static final int DEPTH = 3;
+    public static final int BUCKETS = 1 << (4 * DEPTH);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @return the hash of an object's type and id, used to seed its observations' digests.
+     */
+    public static long hash(PersistentObject.ObjectType type, String id) {
+        long h = fnv(0xcbf29ce484222325L ^ type.ordinal(), id);
+        return mix(h);
+    }
+
+    /**
+     * @return the bucket of an object.
+     */
+    public static int bucket(PersistentObject.ObjectType type, String id) {
+        return bucket(hash(type, id));
+    }
+
+    static int bucket(long objectHash) {
+        return (int) (objectHash >>> (64 - 4 * DEPTH));
+    }
+
+    /**
+     * @param objectHash hash of the observed object.
+     * @return the digest of a single observation.
+     */
+    static long digest(long objectHash, long time, String camera, long origin) {
+        return mix(objectHash + mix(time ^ fnv(0xcbf29ce484222325L, camera) ^ mix(origin)));
+    }
+
+    /**
+     * Adds the digests of new observations to their object's bucket.
+     * @param objectHash hash of the object.
+     * @param digest sum of the digests of the observations.
+     */
+    void add(long objectHash, long digest) {
+        if (digest != 0)
+            buckets.addAndGet(bucket(objectHash), digest);
+    }
+
+    void clear() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+    }
+
+    /**
+     * Hashes every node of a level. Concurrent additions may or may not be included.
+     * @param level 0 for the root, up to DEPTH for the buckets.
+     * @return the hash of each node, FANOUT^level of them.
+     */
+    public long[] level(int level) {
+        if (level < 0 || level > DEPTH)
+            throw new IllegalArgumentException("Invalid tree level " + level);
+        long[] hashes = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            hashes[i] = buckets.get(i);
+        for (int l = DEPTH; l > level; l--) {
+            long[] parents = new long[hashes.length / FANOUT];
+            for (int p = 0; p < parents.length; p++) {
+                long h = 0;
+                for (int c = 0; c < FANOUT; c++)
+                    h = mix(h * 31 + hashes[p * FANOUT + c]);
+                parents[p] = h;
+            }
+            hashes = parents;
+        }
+        return hashes;
+    }
+
+    private static long fnv(long seed, String s) {
+        long h = seed;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,116 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Objects of a single type, keyed by their id packed into a primitive long.
+ * Ids that cannot be packed losslessly are kept in a regular map.
+ */
+class ObjectPartition {
+
+    static final long NO_KEY = -1L;
+
+    // Person keys: leading zero count on the top bits, numeric value on the bottom ones
+    private static final int ZEROS_SHIFT = 58;
+    private static final int MAX_ZEROS = 31;
+    private static final long MAX_PERSON_VALUE = (1L << ZEROS_SHIFT) - 1;
+    private static final int CAR_ID_LENGTH = 6;
+
+    private final LongObjectMap<PersistentObject> packed;
+    private final Map<String, PersistentObject> unpacked = new ConcurrentHashMap<>();
+    private final ToLongFunction<String> packer;
+
+    private ObjectPartition(int expectedSize, int concurrency, ToLongFunction<String> packer) {
+        this.packed = new LongObjectMap<>(expectedSize, concurrency);
+        this.packer = packer;
+    }
+
+    static ObjectPartition forPersons(int expectedSize, int concurrency) {
+        return new ObjectPartition(expectedSize, concurrency, ObjectPartition::packPersonId);
+    }
+
+    static ObjectPartition forCars(int expectedSize, int concurrency) {
+        return new ObjectPartition(expectedSize, concurrency, ObjectPartition::packCarId);
+    }
+
+    PersistentObject get(String id) {
+        long key = packer.applyAsLong(id);
+        return key == NO_KEY ? unpacked.get(id) : packed.get(key);
+    }
+
+    /**
+     * Adds an object, unless one with the same id already exists.
+     * @return the existing object, or null if o was added.
+     */
+    PersistentObject putIfAbsent(String id, PersistentObject o) {
+        long key = packer.applyAsLong(id);
+        return key == NO_KEY ? unpacked.putIfAbsent(id, o) : packed.putIfAbsent(key, o);
+    }
+
+    /**
+     * @return a snapshot of every object in the partition.
+     */
+    List<PersistentObject> values() {
+        List<PersistentObject> res = packed.values();
+        res.addAll(unpacked.values());
+        return res;
+    }
+
+    void clear() {
+        packed.clear();
+        unpacked.clear();
+    }
+
+    /**
+     * Packs a numeric person id, keeping its leading zeros so that distinct ids never share a key.
+     * @return the key, or NO_KEY if the id is signed or too long.
+     */
+    static long packPersonId(String id) {
+        int len = id.length();
+        if (len == 0) {
+            return NO_KEY;
+        }
+        int zeros = 0;
+        while (zeros < len - 1 && id.charAt(zeros) == '0') {
+            zeros++;
+        }
+        // Beyond 18 digits the value may not fit a long
+        if (zeros > MAX_ZEROS || len - zeros > 18) {
+            return NO_KEY;
+        }
+        long value = 0;
+        for (int i = zeros; i < len; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_KEY;
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (value > MAX_PERSON_VALUE) {
+            return NO_KEY;
+        }
+        return ((long) zeros << ZEROS_SHIFT) | value;
+    }
+
+    /**
+     * Packs a car plate, one byte per character.
+     * @return the key, or NO_KEY if the id is not made of 6 ASCII characters.
+     */
+    static long packCarId(String id) {
+        if (id.length() != CAR_ID_LENGTH) {
+            return NO_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < CAR_ID_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (c > 0x7F) {
+                return NO_KEY;
+            }
+            key = (key << 8) | c;
+        }
+        return key;
+    }
+}
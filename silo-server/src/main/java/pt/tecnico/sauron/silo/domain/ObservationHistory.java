@@ -0,0 +1,263 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Observations of a single object, kept in chronological order as they are inserted.
+ * In-order observations are appended; late ones (e.g. from gossip) are placed by binary search.
+ * Stored column by column: epoch milliseconds, camera ordinals and origins in primitive arrays.
+ * Not thread safe, callers are expected to synchronize.
+ */
+class ObservationHistory {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final CameraDictionary cameras;
+
+    // Oldest observation first, latest observation last
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int[] cams = new int[INITIAL_CAPACITY];
+    private long[] origins = new long[INITIAL_CAPACITY];
+    private int size;
+
+    ObservationHistory(CameraDictionary cameras) {
+        this.cameras = cameras;
+    }
+
+    /**
+     * Inserts an observation in its chronological position.
+     * @param obs observation to be inserted.
+     */
+    void add(PersistentObservation obs) {
+        long time = obs.getTimestamp().toEpochMilli();
+        int cam = cameras.intern(obs.getCamera());
+        ensureCapacity(size + 1);
+        if (size == 0 || time >= times[size - 1]) {
+            times[size] = time;
+            cams[size] = cam;
+            origins[size] = obs.getOrigin();
+        } else {
+            int i = insertionPoint(time);
+            System.arraycopy(times, i, times, i + 1, size - i);
+            System.arraycopy(cams, i, cams, i + 1, size - i);
+            System.arraycopy(origins, i, origins, i + 1, size - i);
+            times[i] = time;
+            cams[i] = cam;
+            origins[i] = obs.getOrigin();
+        }
+        size++;
+    }
+
+    /**
+     * Inserts a batch of observations. Batches newer than every stored observation are
+     * appended, otherwise both runs are merged in a single pass.
+     * @param obs observations to be inserted, in any order.
+     */
+    void addAll(List<PersistentObservation> obs) {
+        if (obs.isEmpty()) {
+            return;
+        }
+        List<PersistentObservation> incoming = new ArrayList<>(obs);
+        incoming.sort((a, b) -> a.getTimestamp().compareTo(b.getTimestamp()));
+        int n = incoming.size();
+        long[] inTimes = new long[n];
+        int[] inCams = new int[n];
+        long[] inOrigins = new long[n];
+        for (int k = 0; k < n; k++) {
+            inTimes[k] = incoming.get(k).getTimestamp().toEpochMilli();
+            inCams[k] = cameras.intern(incoming.get(k).getCamera());
+            inOrigins[k] = incoming.get(k).getOrigin();
+        }
+        addAll(inTimes, inCams, inOrigins);
+    }
+
+    /**
+     * Inserts a batch of observations given column by column.
+     * @param inTimes epoch milliseconds, oldest first.
+     * @param inCams camera ordinals in this history's dictionary.
+     * @param inOrigins updates that made the observations.
+     */
+    void addAll(long[] inTimes, int[] inCams, long[] inOrigins) {
+        int n = inTimes.length;
+        if (n == 0) {
+            return;
+        }
+        ensureCapacity(size + n);
+        if (size == 0 || inTimes[0] >= times[size - 1]) {
+            System.arraycopy(inTimes, 0, times, size, n);
+            System.arraycopy(inCams, 0, cams, size, n);
+            System.arraycopy(inOrigins, 0, origins, size, n);
+            size += n;
+            return;
+        }
+
+        // Merge backwards, so that no extra buffer is needed
+        int i = size - 1;
+        int j = n - 1;
+        for (int k = size + n - 1; j >= 0; k--) {
+            if (i >= 0 && times[i] > inTimes[j]) {
+                times[k] = times[i];
+                cams[k] = cams[i];
+                origins[k] = origins[i--];
+            } else {
+                times[k] = inTimes[j];
+                cams[k] = inCams[j];
+                origins[k] = inOrigins[j--];
+            }
+        }
+        size += n;
+    }
+
+    /**
+     * Inserts the observations of another history that are not stored yet, so that
+     * merging the same observations twice has no effect. Observations are equal if
+     * they have the same time, camera and origin; repeated ones are counted.
+     * @param in observations to be merged, in the same camera dictionary.
+     * @return the observations that were inserted.
+     */
+    ObservationHistory merge(ObservationHistory in) {
+        ObservationHistory added = new ObservationHistory(cameras);
+        int i = 0;
+        while (i < in.size) {
+            long time = in.times[i];
+            int j = i;
+            while (j < in.size && in.times[j] == time)
+                j++;
+            int high = insertionPoint(time);
+            int low = high;
+            while (low > 0 && times[low - 1] == time)
+                low--;
+            boolean[] matched = new boolean[high - low];
+            for (int k = i; k < j; k++) {
+                int m = low;
+                while (m < high && (matched[m - low] || cams[m] != in.cams[k] || origins[m] != in.origins[k]))
+                    m++;
+                if (m < high)
+                    matched[m - low] = true;
+                else
+                    added.append(time, in.cams[k], in.origins[k]);
+            }
+            i = j;
+        }
+        addAll(added.times(), added.cameras(), added.origins());
+        return added;
+    }
+
+    /**
+     * @param objectHash hash of the object these observations belong to.
+     * @return the sum of the digests of every observation.
+     * @see MerkleTree
+     */
+    long digest(long objectHash) {
+        long sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += MerkleTree.digest(objectHash, times[i], cameras.get(cams[i]).getName(), origins[i]);
+        return sum;
+    }
+
+    /**
+     * @return the most recent observation, or null if there are none.
+     */
+    PersistentObservation latest() {
+        return size == 0 ? null : view(size - 1);
+    }
+
+    /**
+     * @return every observation, most recent first.
+     */
+    List<PersistentObservation> newestFirst() {
+        List<PersistentObservation> res = new ArrayList<>(size);
+        for (int i = size - 1; i >= 0; i--) {
+            res.add(view(i));
+        }
+        return res;
+    }
+
+    /**
+     * @return every observation, oldest first.
+     */
+    List<PersistentObservation> oldestFirst() {
+        List<PersistentObservation> res = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(view(i));
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the observation times, oldest first.
+     */
+    long[] times() {
+        return Arrays.copyOf(times, size);
+    }
+
+    /**
+     * @return a copy of the observation camera ordinals, oldest first.
+     */
+    int[] cameras() {
+        return Arrays.copyOf(cams, size);
+    }
+
+    /**
+     * @return a copy of the observation origins, oldest first.
+     */
+    long[] origins() {
+        return Arrays.copyOf(origins, size);
+    }
+
+    /**
+     * @return an independent copy of this history.
+     */
+    ObservationHistory copy() {
+        ObservationHistory res = new ObservationHistory(cameras);
+        res.addAll(times(), cameras(), origins());
+        return res;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private PersistentObservation view(int i) {
+        return new PersistentObservation(Instant.ofEpochMilli(times[i]), cameras.get(cams[i]), origins[i]);
+    }
+
+    // Only for observations not older than the last one
+    private void append(long time, int cam, long origin) {
+        ensureCapacity(size + 1);
+        times[size] = time;
+        cams[size] = cam;
+        origins[size] = origin;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > times.length) {
+            int newCapacity = Math.max(capacity, times.length + (times.length >> 1));
+            times = Arrays.copyOf(times, newCapacity);
+            cams = Arrays.copyOf(cams, newCapacity);
+            origins = Arrays.copyOf(origins, newCapacity);
+        }
+    }
+
+    /**
+     * Index after the last observation that is not newer than time, so that
+     * observations with equal timestamps keep their arrival order.
+     */
+    private int insertionPoint(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (time < times[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}
@@ -1,7 +1,5 @@
 package pt.tecnico.sauron.silo.domain;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -10,24 +8,34 @@ public class PersistentObject implements GossipTarget {
         PERSON, CAR
     }
 
-    private List<PersistentObservation> observations = new ArrayList<>();
+    private final ObservationHistory observations;
     private final String id;
     private final ObjectType type;
+    // Last checkpoint whose state of this object was already captured. Guarded by this
+    int checkpoint;
 
-    public PersistentObject(String id, ObjectType type) {
+    /**
+     * @param cameras dictionary where the cameras of this object's observations are interned.
+     */
+    public PersistentObject(String id, ObjectType type, CameraDictionary cameras) {
         this.id = id;
         this.type = type;
+        this.observations = new ObservationHistory(cameras);
     }
 
-    public PersistentObject(String id, ObjectType type, PersistentObservation obs) {
+    private PersistentObject(String id, ObjectType type, ObservationHistory observations) {
         this.id = id;
         this.type = type;
+        this.observations = observations;
+    }
+
+    public PersistentObject(String id, ObjectType type, CameraDictionary cameras, PersistentObservation obs) {
+        this(id, type, cameras);
         addObservation(obs);
     }
 
-    public PersistentObject(String id, ObjectType type, List<PersistentObservation> obs) {
-        this.id = id;
-        this.type = type;
+    public PersistentObject(String id, ObjectType type, CameraDictionary cameras, List<PersistentObservation> obs) {
+        this(id, type, cameras);
         addObservation(obs);
     }
 
@@ -39,6 +47,43 @@ public class PersistentObject implements GossipTarget {
         observations.addAll(obs);
     }
 
+    /**
+     * Adds observations given column by column, as stored in snapshots.
+     * @param times epoch milliseconds, oldest first.
+     * @param cameras camera ordinals in the object's camera dictionary.
+     * @param origins updates that made the observations.
+     */
+    public synchronized void addObservation(long[] times, int[] cameras, long[] origins) {
+        observations.addAll(times, cameras, origins);
+    }
+
+    /**
+     * Adds the observations of another object with the same type and id that this one
+     * does not have yet.
+     * @param o object whose observations are merged.
+     * @return the sum of the digests of the added observations.
+     * @see MerkleTree
+     */
+    long merge(PersistentObject o) {
+        ObservationHistory in;
+        synchronized (o) {
+            in = o.observations.copy();
+        }
+        ObservationHistory added;
+        synchronized (this) {
+            added = observations.merge(in);
+        }
+        return added.digest(MerkleTree.hash(type, id));
+    }
+
+    /**
+     * @return the sum of the digests of every observation.
+     * @see MerkleTree
+     */
+    synchronized long digest() {
+        return observations.digest(MerkleTree.hash(type, id));
+    }
+
     public String getId() {
         return this.id;
     }
@@ -47,17 +92,46 @@ public class PersistentObject implements GossipTarget {
         return this.type;
     }
 
+    /**
+     * @return the object's observations, most recent first. Built from the stored columns.
+     */
     public synchronized List<PersistentObservation> getObservations() {
-        Collections.sort(this.observations);
-        return this.observations;
+        return this.observations.newestFirst();
     }
 
+    /**
+     * @return the most recent observation, or null if there are none.
+     */
     public synchronized PersistentObservation getLatestObservation() {
-        if (this.observations.isEmpty()) {
-            return null;
-        }
-        Collections.sort(this.observations);
-        return this.observations.get(0);
+        return this.observations.latest();
+    }
+
+    /**
+     * @return observation times in epoch milliseconds, oldest first.
+     */
+    public synchronized long[] getObservationTimes() {
+        return this.observations.times();
+    }
+
+    /**
+     * @return observation camera ordinals in the object's camera dictionary, oldest first.
+     */
+    public synchronized int[] getObservationCameras() {
+        return this.observations.cameras();
+    }
+
+    /**
+     * @return updates that made the observations, oldest first.
+     */
+    public synchronized long[] getObservationOrigins() {
+        return this.observations.origins();
+    }
+
+    /**
+     * @return a copy of this object, with a copy of its current observations.
+     */
+    synchronized PersistentObject copy() {
+        return new PersistentObject(id, type, observations.copy());
     }
 
     @Override
@@ -80,7 +154,7 @@ public class PersistentObject implements GossipTarget {
     public String toString() {
         String s = id + "," + this.type;
         synchronized (this) {
-            for (PersistentObservation o : observations) {
+            for (PersistentObservation o : observations.oldestFirst()) {
                 s += "," + o.toString();
             }
 
@@ -6,10 +6,31 @@ import java.util.Objects;
 public class PersistentObservation implements Comparable<PersistentObservation> {
     private final Instant timestamp;
     private final PersistentCamera camera;
+    // Update that made the observation, 0 if unknown
+    private final long origin;
 
     public PersistentObservation(Instant timestamp, PersistentCamera camera) {
+        this(timestamp, camera, 0);
+    }
+
+    /**
+     * @param origin update that made the observation, as given by {@link #origin(int, int)}.
+     */
+    public PersistentObservation(Instant timestamp, PersistentCamera camera, long origin) {
         this.timestamp = timestamp;
         this.camera = camera;
+        this.origin = origin;
+    }
+
+    /**
+     * Identifies an update across replicas, so that observations with the same time and camera
+     * made by different updates are told apart.
+     * @param rid instance number of the replica that accepted the update.
+     * @param uid update id.
+     * @return the origin of the update's observations.
+     */
+    public static long origin(int rid, int uid) {
+        return (long) rid << 32 | (uid & 0xffffffffL);
     }
 
     public Instant getTimestamp() {
@@ -20,18 +41,23 @@ public class PersistentObservation implements Comparable<PersistentObservation>
         return this.camera;
     }
 
+    public long getOrigin() {
+        return this.origin;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof PersistentObservation)) {
             return false;
         }
         PersistentObservation ob = (PersistentObservation) o;
-        return this.getCamera() == ob.getCamera() && this.getTimestamp() == ob.getTimestamp();
+        return this.getCamera() == ob.getCamera() && this.getTimestamp() == ob.getTimestamp()
+                && this.getOrigin() == ob.getOrigin();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.getCamera(), this.getTimestamp());
+        return Objects.hash(this.getCamera(), this.getTimestamp(), this.getOrigin());
     }
 
     @Override
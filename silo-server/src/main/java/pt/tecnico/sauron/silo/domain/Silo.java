@@ -1,20 +1,66 @@
 package pt.tecnico.sauron.silo.domain;
 
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import pt.tecnico.sauron.silo.domain.exceptions.ErrorMessage;
 import pt.tecnico.sauron.silo.domain.exceptions.SiloException;
 
 public class Silo {
 
-    private Map<String, PersistentObject> objects = new ConcurrentHashMap<>();
+    // Expected number of objects and lock segments of each partition
+    private static final int PERSON_CAPACITY = 1 << 16;
+    private static final int PERSON_CONCURRENCY = 16;
+    private static final int CAR_CAPACITY = 1 << 18;
+    private static final int CAR_CONCURRENCY = 64;
+
+    // Objects, partitioned by type
+    private Map<PersistentObject.ObjectType, ObjectPartition> objects = new EnumMap<>(PersistentObject.ObjectType.class);
     private Map<String, PersistentCamera> cameras = new ConcurrentHashMap<>();
+    // Ordinals of every camera referenced by stored observations. Survives clearState, as cameras are told apart by coordinates too
+    private final CameraDictionary cameraDictionary;
+    // Latest observation of each object, by type and id. Kept up to date on every insertion
+    private Map<PersistentObject.ObjectType, Map<String, PersistentObservation>> lastSeen = new EnumMap<>(PersistentObject.ObjectType.class);
+
+    // Checkpoint in progress, if any, and number of checkpoints taken
+    private volatile Checkpoint checkpoint;
+    private int checkpoints;
+
+    // Searchable ids of each type, for trackMatch
+    private Map<PersistentObject.ObjectType, IdIndex> indexes = new EnumMap<>(PersistentObject.ObjectType.class);
+
+    // Hashes of the stored observations, for anti-entropy, and the objects in each of its buckets
+    private final MerkleTree merkleTree = new MerkleTree();
+    private final List<Set<PersistentObject>> buckets = new ArrayList<>(MerkleTree.BUCKETS);
+
+    public Silo() {
+        this(new CameraDictionary());
+    }
+
+    /**
+     * Creates a silo whose objects intern their cameras in an existing dictionary.
+     * @param cameraDictionary the camera dictionary.
+     */
+    public Silo(CameraDictionary cameraDictionary) {
+        this.cameraDictionary = cameraDictionary;
+        objects.put(PersistentObject.ObjectType.PERSON, ObjectPartition.forPersons(PERSON_CAPACITY, PERSON_CONCURRENCY));
+        objects.put(PersistentObject.ObjectType.CAR, ObjectPartition.forCars(CAR_CAPACITY, CAR_CONCURRENCY));
+        for (PersistentObject.ObjectType type : PersistentObject.ObjectType.values()) {
+            lastSeen.put(type, new ConcurrentHashMap<>());
+        }
+        // Car plates are short enough to index every substring
+        indexes.put(PersistentObject.ObjectType.PERSON, new IdIndex(false));
+        indexes.put(PersistentObject.ObjectType.CAR, new IdIndex(true));
+        for (int i = 0; i < MerkleTree.BUCKETS; i++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+    }
 
     /**
      * Getter for list of objects stored.
@@ -22,7 +68,34 @@ public class Silo {
      * @return a collection of objects.
      */
     public Collection<PersistentObject> getObjects() {
-        return objects.values();
+        List<PersistentObject> res = new ArrayList<>();
+        for (ObjectPartition p : objects.values()) {
+            res.addAll(p.values());
+        }
+        return res;
+    }
+
+    /**
+     * Getter for the objects in some buckets of the Merkle tree. Only goes through those buckets.
+     * @param buckets the buckets.
+     * @return the objects in the buckets.
+     * @see MerkleTree#bucket(PersistentObject.ObjectType, String)
+     */
+    public List<PersistentObject> getObjectsInBuckets(Set<Integer> buckets) {
+        List<PersistentObject> res = new ArrayList<>();
+        for (int bucket : buckets) {
+            if (bucket >= 0 && bucket < MerkleTree.BUCKETS)
+                res.addAll(this.buckets.get(bucket));
+        }
+        return res;
+    }
+
+    /**
+     * Getter for the Merkle tree over this silo's observations.
+     * @return the Merkle tree.
+     */
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
     }
 
     /**
@@ -34,6 +107,14 @@ public class Silo {
         return cameras.values();
     }
 
+    /**
+     * Getter for the dictionary objects of this silo must intern their cameras in.
+     * @return the camera dictionary.
+     */
+    public CameraDictionary getCameraDictionary() {
+        return cameraDictionary;
+    }
+
     /**
      * Checks if a camera already exists.
      * @param camName name of camera to be found.
@@ -61,29 +142,49 @@ public class Silo {
     }
 
     /**
-     * Adds a camera.
-     * @param c camera to be added.
-     * @return if the camera was sucessfully added or not.
+     * Checks if a camera can be added, without adding it.
+     * @param c camera to be checked.
+     * @return if the camera is new, or false if it was already added.
+     * @throws SiloException if another camera has its name.
      */
-    public boolean addCamera(PersistentCamera c) {
-
+    public boolean isNewCamera(PersistentCamera c) {
         if (hasCamera(c.getName()) && ((c.getLatitude() != getCamera(c.getName()).getLatitude())
                 || (c.getLongitude() != getCamera(c.getName()).getLongitude()))) {
             throw new SiloException(ErrorMessage.CAM_EXISTS, c.getName());
-        } else{
-            if(hasCamera(c.getName()))
-                return false;
-            cameras.put(c.getName(), c);
-            return true;
         }
+        return !hasCamera(c.getName());
+    }
+
+    /**
+     * Adds a camera.
+     * @param c camera to be added.
+     * @return if the camera was sucessfully added or not.
+     */
+    public boolean addCamera(PersistentCamera c) {
+        if (!isNewCamera(c))
+            return false;
+        cameras.put(c.getName(), c);
+        return true;
     }
 
     /**
      * Resets state. Clears all cameras and all objects.
      */
     public void clearState() {
-        objects.clear();
+        for (ObjectPartition p : objects.values()) {
+            p.clear();
+        }
         cameras.clear();
+        for (Map<String, PersistentObservation> m : lastSeen.values()) {
+            m.clear();
+        }
+        for (IdIndex index : indexes.values()) {
+            index.clear();
+        }
+        merkleTree.clear();
+        for (Set<PersistentObject> bucket : buckets) {
+            bucket.clear();
+        }
     }
 
     /**
@@ -93,12 +194,17 @@ public class Silo {
      * @return the object.
      */
     public PersistentObject getObject(PersistentObject.ObjectType type, String id) {
-        PersistentObject o = objects.get(id);
-        if (o != null)
-            if (type != o.getType()) {
-                return null;
-            }
-        return o;
+        return objects.get(type).get(id);
+    }
+
+    /**
+     * Getter for the latest observation of an object. Does not go through the object's history.
+     * @param type type of object to be found.
+     * @param id id of object to be found.
+     * @return the latest observation, or null if the object does not exist.
+     */
+    public PersistentObservation getLatestObservation(PersistentObject.ObjectType type, String id) {
+        return lastSeen.get(type).get(id);
     }
 
     /**
@@ -109,18 +215,19 @@ public class Silo {
      */
     public List<PersistentObject> findByTypeAndId(PersistentObject.ObjectType type, String sIdPattern) {
         List<PersistentObject> matches = new ArrayList<>();
+        Pattern pattern = Pattern.compile(sIdPattern);
 
-        Set<String> set = objects.keySet().stream().filter(s -> s.matches(sIdPattern)).collect(Collectors.toSet());
-        if (type != null)
-            for (String id : set) {
-                if (objects.get(id).getType() == type) {
-                    matches.add(objects.get(id));
-                }
-            }
-        else
-            for (String id : set) {
-                matches.add(objects.get(id));
+        for (PersistentObject.ObjectType t : PersistentObject.ObjectType.values()) {
+            if (type != null && type != t)
+                continue;
+            for (String id : indexes.get(t).candidates(sIdPattern)) {
+                if (!pattern.matcher(id).matches())
+                    continue;
+                PersistentObject o = objects.get(t).get(id);
+                if (o != null)
+                    matches.add(o);
             }
+        }
 
         return matches;
     }
@@ -131,23 +238,63 @@ public class Silo {
      * @param objs map of <id, object> to add.
      */
     public void addObjects(Map<String, PersistentObject> objs) {
-        for (String s : objs.keySet()) {
-            if (objects.containsKey(s))
-                objects.get(s).addObservation(objs.get(s).getObservations());
-            else
-                objects.put(s, objs.get(s));
+        for (PersistentObject o : objs.values()) {
+            addObject(o);
         }
     }
 
     /**
-     * Adds a single object. If object already exists, merges it with existent one.
+     * Adds a single object. If object already exists, merges it with existent one:
+     * observations it already has, with the same time and camera, are not added again.
      * @param o object to be added.
      */
     public void addObject(PersistentObject o) {
-        if (objects.containsKey(o.getId()))
-            objects.get(o.getId()).addObservation(o.getObservations());
-        else
-            objects.put(o.getId(), o);
+        Checkpoint c = checkpoint;
+        if (c != null)
+            c.beforeCreate(o);
+        // Taken before o is shared, so that observations merged into it are not counted twice
+        long digest = o.digest();
+        long hash = MerkleTree.hash(o.getType(), o.getId());
+        PersistentObject existing = objects.get(o.getType()).putIfAbsent(o.getId(), o);
+        if (existing != null) {
+            if (c != null)
+                c.beforeWrite(existing);
+            digest = existing.merge(o);
+        } else {
+            indexes.get(o.getType()).add(o.getId());
+            buckets.get(MerkleTree.bucket(hash)).add(o);
+        }
+        merkleTree.add(hash, digest);
+        updateLastSeen(o);
+    }
+
+    /**
+     * Starts a checkpoint of the current objects. Callers must ensure no object is
+     * being added while the checkpoint starts, but may add objects while it is read.
+     * @return the checkpoint, to be closed once read.
+     */
+    public synchronized Checkpoint beginCheckpoint() {
+        if (checkpoint != null)
+            throw new IllegalStateException("Checkpoint already in progress");
+        checkpoint = new Checkpoint(this, ++checkpoints);
+        return checkpoint;
+    }
+
+    synchronized void endCheckpoint(Checkpoint c) {
+        if (checkpoint == c)
+            checkpoint = null;
+    }
+
+    /**
+     * Replaces the recorded latest observation of an object if the given one is more recent.
+     * @param o object whose latest observation was just added.
+     */
+    private void updateLastSeen(PersistentObject o) {
+        PersistentObservation latest = o.getLatestObservation();
+        if (latest == null)
+            return;
+        lastSeen.get(o.getType()).merge(o.getId(), latest,
+                (old, obs) -> obs.getTimestamp().isAfter(old.getTimestamp()) ? obs : old);
     }
 
 }
\ No newline at end of file
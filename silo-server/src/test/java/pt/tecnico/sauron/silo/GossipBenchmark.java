@@ -0,0 +1,199 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
+
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+
+/**
+ * Measures how long an update takes to reach every replica, for several cluster sizes
+ * and fanouts, and how many updates are still logged a couple of rounds later, once every
+ * replica has seen it. Replicas run in this process and register in ZooKeeper, which must not
+ * have other replicas registered. Rounds run back to back, every replica gossiping once
+ * per round.
+ *
+ * Usage: GossipBenchmark zooHost zooPort [basePort [trials]]
+ */
+public class GossipBenchmark {
+  private static final String BASEPATH = "/grpc/sauron/silo";
+  private static final int[] SIZES = { 3, 5, 9 };
+  private static final int[] FANOUTS = { 1, 2, 3 };
+  private static final int MAX_ROUNDS = 100;
+  // Rounds after convergence, for every replica to learn that the others have the update
+  private static final int TRUNCATE_ROUNDS = 2;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.printf("Usage: java %s zooHost zooPort [basePort [trials]]%n", GossipBenchmark.class.getName());
+      return;
+    }
+    final ZKNaming zk = new ZKNaming(args[0], args[1]);
+    final int basePort = args.length >= 3 ? Integer.parseInt(args[2]) : 8100;
+    final int trials = args.length >= 4 ? Integer.parseInt(args[3]) : 5;
+    Logger.getLogger("").setLevel(Level.WARNING);
+
+    System.out.println("replicas first fanout rounds ms logged");
+    for (int n : SIZES) {
+      for (int fanout : FANOUTS) {
+        if (fanout >= n) {
+          continue;
+        }
+        run(zk, basePort, n, 1, fanout, trials);
+      }
+    }
+    // As in the demo, where replicas are numbered from 0: replica 0 must be gossiped with like any other
+    run(zk, basePort, 2, 0, 1, trials);
+  }
+
+  private static void run(ZKNaming zk, int basePort, int n, int first, int fanout, int trials) throws Exception {
+    double rounds = 0;
+    double millis = 0;
+    double logged = 0;
+    for (int t = 0; t < trials; t++) {
+      long[] res = trial(zk, basePort, n, first, fanout);
+      rounds += res[0];
+      millis += res[1];
+      logged += res[2];
+    }
+    System.out.printf("%8d %5d %6d %6.1f %6.1f %.1f%n", n, first, fanout, rounds / trials, millis / trials, logged / trials);
+  }
+
+  /**
+   * Starts n replicas, reports an observation to the first one and gossips until every
+   * replica has it.
+   *
+   * @param first instance number of the first replica.
+   * @return the number of rounds and milliseconds it took, and the updates still logged after TRUNCATE_ROUNDS more rounds.
+   */
+  private static long[] trial(ZKNaming zk, int basePort, int n, int first, int fanout) throws Exception {
+    List<SiloServerImpl> replicas = new ArrayList<>();
+    List<Server> servers = new ArrayList<>();
+    List<GossipService> services = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(n);
+    try {
+      for (int i = first; i < first + n; i++) {
+        zk.rebind(BASEPATH + "/" + i, "localhost", String.valueOf(basePort + i));
+      }
+      for (int i = first; i < first + n; i++) {
+        // Instance numbers index the timestamp
+        GossipService gossip = new GossipService(zk, i, fanout);
+        services.add(gossip);
+        SiloServerImpl impl = new SiloServerImpl(gossip, i);
+        replicas.add(impl);
+        servers.add(ServerBuilder.forPort(basePort + i).addService(impl).build().start());
+      }
+
+      SiloServerImpl entry = replicas.get(0);
+      List<Integer> timestamp = new ArrayList<>(Collections.nCopies(first + n, 0));
+      Camera cam = Camera.newBuilder().setName("bench")
+          .setCoordinates(Coordinates.newBuilder().setLatitude(0).setLongitude(0)).build();
+      entry.camJoin(CamJoinRequest.newBuilder().setCam(cam)
+          .setTimestamp(Timestamp.newBuilder().addAllTimestamp(timestamp)).build(), ignore());
+      timestamp.set(first, 1);
+      entry.report(ReportRequest.newBuilder().setName("bench").setClientId(1)
+          .setTimestamp(Timestamp.newBuilder().addAllTimestamp(timestamp))
+          .addObservations(Observation.newBuilder().setType(ObjectType.PERSON).setIdentifier("1")).build(), ignore());
+      int target = timestamp(entry).get(first);
+
+      long start = System.nanoTime();
+      int rounds = 0;
+      while (!converged(replicas, first, target) && rounds < MAX_ROUNDS) {
+        round(replicas, executor);
+        rounds++;
+      }
+      long millis = (System.nanoTime() - start) / 1000000;
+      for (int r = 0; r < TRUNCATE_ROUNDS; r++) {
+        round(replicas, executor);
+      }
+      long logged = 0;
+      for (SiloServerImpl impl : replicas) {
+        logged += impl.getLoggedUpdates();
+      }
+      return new long[] { rounds, millis, logged };
+    } finally {
+      executor.shutdownNow();
+      for (GossipService g : services) {
+        g.close();
+      }
+      for (Server s : servers) {
+        s.shutdownNow().awaitTermination();
+      }
+      for (int i = first; i < first + n; i++) {
+        zk.unbind(BASEPATH + "/" + i, "localhost", String.valueOf(basePort + i));
+      }
+    }
+  }
+
+  /**
+   * Makes every replica gossip once, at the same time.
+   */
+  private static void round(List<SiloServerImpl> replicas, ExecutorService executor) throws Exception {
+    List<Future<?>> round = new ArrayList<>();
+    for (SiloServerImpl impl : replicas) {
+      round.add(executor.submit(impl::sendGossip));
+    }
+    for (Future<?> f : round) {
+      f.get();
+    }
+  }
+
+  private static boolean converged(List<SiloServerImpl> replicas, int first, int target) {
+    for (SiloServerImpl impl : replicas) {
+      // A replica's timestamp only grows to the instance numbers it has updates from
+      List<Integer> timestamp = timestamp(impl);
+      if (timestamp.size() <= first || timestamp.get(first) < target) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static List<Integer> timestamp(SiloServerImpl impl) {
+    AtomicReference<List<Integer>> res = new AtomicReference<>();
+    impl.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier("1").build(),
+        new StreamObserver<TrackResponse>() {
+          @Override
+          public void onNext(TrackResponse value) {
+            res.set(value.getTimestamp().getTimestampList());
+          }
+
+          @Override
+          public void onError(Throwable t) {
+          }
+
+          @Override
+          public void onCompleted() {
+          }
+        });
+    return res.get();
+  }
+
+  private static <T> StreamObserver<T> ignore() {
+    return new StreamObserver<T>() {
+      @Override
+      public void onNext(T value) {
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+  }
+}
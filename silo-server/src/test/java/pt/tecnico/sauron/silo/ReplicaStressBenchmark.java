@@ -0,0 +1,175 @@
+package pt.tecnico.sauron.silo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import pt.tecnico.sauron.silo.grpc.SiloGrpc;
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
+
+/**
+ * Measures how the throughput of a single replica scales with the number of threads
+ * calling it at once. Each thread reports and queries in turn, three queries per
+ * report, while another thread pulls the latest updates through gossip every few milliseconds.
+ * Runs in-process, without ZooKeeper.
+ *
+ * Usage: ReplicaStressBenchmark [seconds [maxThreads]]
+ */
+public class ReplicaStressBenchmark {
+  private static final int CAMERAS = 16;
+  private static final int IDS = 100000;
+  private static final int OBSERVATIONS = 5;
+  // Operations per trackMatch
+  private static final int MATCH_EVERY = 64;
+  // Updates pulled by each gossip request, and milliseconds between requests
+  private static final int GOSSIP_WINDOW = 1000;
+  private static final long GOSSIP_INTERVAL = 10;
+
+  public static void main(String[] args) throws Exception {
+    final int seconds = args.length >= 1 ? Integer.parseInt(args[0]) : 5;
+    final int maxThreads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    Logger.getLogger("").setLevel(Level.WARNING);
+
+    System.out.println("threads ops/s reports/s gossiped/s");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      trial(threads, seconds);
+    }
+  }
+
+  private static void trial(int threads, int seconds) throws Exception {
+    SiloServerImpl impl = new SiloServerImpl(null, 1);
+    String name = "stress-" + threads;
+    Server server = InProcessServerBuilder.forName(name).addService(impl).build().start();
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    try {
+      for (int c = 0; c < CAMERAS; c++) {
+        impl.camJoin(CamJoinRequest.newBuilder().setCam(Camera.newBuilder().setName("cam" + c)
+            .setCoordinates(Coordinates.newBuilder().setLatitude(c).setLongitude(c)))
+            .setTimestamp(Timestamp.newBuilder().addTimestamp(0).addTimestamp(0)).build(), ignore());
+      }
+
+      AtomicLong ops = new AtomicLong();
+      AtomicLong reports = new AtomicLong();
+      AtomicLong gossiped = new AtomicLong();
+      long end = System.nanoTime() + seconds * 1000000000L;
+      List<Thread> workers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int client = 1000 + t;
+        workers.add(new Thread(() -> work(impl, client, end, ops, reports)));
+      }
+      workers.add(new Thread(() -> pull(SiloGrpc.newBlockingStub(channel), impl, end, gossiped)));
+      long start = System.nanoTime();
+      for (Thread w : workers) {
+        w.start();
+      }
+      for (Thread w : workers) {
+        w.join();
+      }
+      double elapsed = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%7d %5.0f %9.0f %10.0f%n", threads, ops.get() / elapsed, reports.get() / elapsed,
+          gossiped.get() / elapsed);
+    } finally {
+      channel.shutdownNow();
+      server.shutdownNow().awaitTermination();
+    }
+  }
+
+  private static void work(SiloServerImpl impl, int client, long end, AtomicLong ops, AtomicLong reports) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int update = 0;
+    for (long i = 0; System.nanoTime() < end; i++) {
+      String id = String.valueOf(random.nextInt(IDS));
+      switch ((int) (i % 4)) {
+        case 0:
+          ReportRequest.Builder report = ReportRequest.newBuilder().setName("cam" + random.nextInt(CAMERAS))
+              .setClientId(client).setTimestamp(Timestamp.newBuilder().addTimestamp(0).addTimestamp(++update));
+          for (int o = 0; o < OBSERVATIONS; o++) {
+            report.addObservations(Observation.newBuilder().setType(ObjectType.PERSON)
+                .setIdentifier(String.valueOf(random.nextInt(IDS))));
+          }
+          impl.report(report.build(), ignore());
+          reports.incrementAndGet();
+          break;
+        case 1:
+          impl.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier(id).build(), ignore());
+          break;
+        case 2:
+          impl.trace(TraceRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier(id).build(), ignore());
+          break;
+        default:
+          // Person patterns go through every id, so they are kept rare
+          if (i % MATCH_EVERY == 3) {
+            impl.trackMatch(TrackMatchRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier(id + "*").build(), ignore());
+          } else {
+            impl.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier(id).build(), ignore());
+          }
+      }
+      ops.incrementAndGet();
+    }
+  }
+
+  /**
+   * Pulls the latest updates of the replica, as a peer that is GOSSIP_WINDOW updates behind.
+   */
+  private static void pull(SiloGrpc.SiloBlockingStub stub, SiloServerImpl impl, long end, AtomicLong gossiped) {
+    while (System.nanoTime() < end) {
+      int current = timestamp(impl);
+      GossipRequest request = GossipRequest.newBuilder()
+          .setTimestamp(Timestamp.newBuilder().addTimestamp(0).addTimestamp(Math.max(0, current - GOSSIP_WINDOW))).build();
+      Iterator<GossipResponse> responses = stub.gossip(request);
+      while (responses.hasNext()) {
+        gossiped.addAndGet(responses.next().getUpdatesCount());
+      }
+      try {
+        Thread.sleep(GOSSIP_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private static int timestamp(SiloServerImpl impl) {
+    int[] res = { 0 };
+    impl.camInfo(CamInfoRequest.newBuilder().setName("cam0").build(), new StreamObserver<CamInfoResponse>() {
+      @Override
+      public void onNext(CamInfoResponse value) {
+        res[0] = value.getTimestamp().getTimestamp(1);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    });
+    return res[0];
+  }
+
+  private static <T> StreamObserver<T> ignore() {
+    return new StreamObserver<T>() {
+      @Override
+      public void onNext(T value) {
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+  }
+}
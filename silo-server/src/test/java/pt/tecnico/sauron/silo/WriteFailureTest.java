@@ -0,0 +1,143 @@
+package pt.tecnico.sauron.silo;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import pt.tecnico.sauron.silo.grpc.SiloOuterClass.*;
+
+/**
+ * Checks that a client update that could not be written to the write-ahead log is
+ * neither acknowledged nor made, and that the client can then send it again.
+ */
+public class WriteFailureTest {
+
+  private static final int CLIENT = 1;
+
+  private Path dir;
+  private FailingLog wal;
+  private SiloServerImpl impl;
+
+  /**
+   * Write-ahead log whose appends fail while asked to.
+   */
+  private static class FailingLog extends WriteAheadLog {
+    private volatile boolean failing;
+
+    FailingLog(Path dir) throws IOException {
+      super(dir);
+    }
+
+    @Override
+    public CompletableFuture<Void> append(LogEntry entry) {
+      if (failing) {
+        return CompletableFuture.failedFuture(new IOException("No space left on device"));
+      }
+      return super.append(entry);
+    }
+  }
+
+  /**
+   * Keeps the response or error of a call.
+   */
+  private static class Result<T> implements StreamObserver<T> {
+    private T value;
+    private Throwable error;
+
+    @Override
+    public void onNext(T value) {
+      this.value = value;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+    }
+  }
+
+  // one-time initialization
+
+  @BeforeAll
+  public static void oneTimeSetUp() {
+    Logger.getLogger("").setLevel(Level.OFF);
+  }
+
+  // initialization and clean-up for each test
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("wal-failure");
+    wal = new FailingLog(dir);
+    impl = new SiloServerImpl(null, 1, wal, null);
+    impl.recover();
+    Result<CamJoinResponse> join = new Result<>();
+    impl.camJoin(CamJoinRequest.newBuilder().setCam(Camera.newBuilder().setName("cam")
+        .setCoordinates(Coordinates.newBuilder().setLatitude(1).setLongitude(1)))
+        .setTimestamp(Timestamp.newBuilder().addTimestamp(0).addTimestamp(0)).build(), join);
+    assertEquals(CLIENT, join.value.getClientId());
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    wal.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+    }
+  }
+
+  private Result<ReportResponse> report(String id) {
+    Result<ReportResponse> res = new Result<>();
+    impl.report(ReportRequest.newBuilder().setName("cam").setClientId(CLIENT)
+        .setTimestamp(Timestamp.newBuilder().addTimestamp(0).addTimestamp(1))
+        .addObservations(Observation.newBuilder().setType(ObjectType.PERSON).setIdentifier(id)).build(), res);
+    return res;
+  }
+
+  private int track(String id) {
+    Result<TrackResponse> res = new Result<>();
+    impl.track(TrackRequest.newBuilder().setType(ObjectType.PERSON).setIdentifier(id).build(), res);
+    return res.value.getObservationCount();
+  }
+
+  // tests
+
+  @Test
+  public void failedUpdateIsNotAcknowledgedNorMade() {
+    wal.failing = true;
+    Result<ReportResponse> res = report("1");
+    assertNull(res.value);
+    assertEquals(Status.Code.INTERNAL, Status.fromThrowable(res.error).getCode());
+    assertEquals(0, track("1"), "the update should not be made");
+  }
+
+  @Test
+  public void failedUpdateCanBeSentAgain() throws IOException {
+    wal.failing = true;
+    report("1");
+    wal.failing = false;
+    Result<ReportResponse> res = report("1");
+    assertNull(res.error);
+    // Numbered after the camera, as the failed attempt took no update id
+    assertEquals(2, res.value.getTimestamp().getTimestamp(1));
+    assertEquals(1, track("1"));
+
+    wal.close();
+    assertEquals(2, new WriteAheadLog(dir).replay(entry -> {}), "the update should be on disk");
+  }
+}
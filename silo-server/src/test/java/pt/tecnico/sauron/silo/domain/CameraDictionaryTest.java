@@ -0,0 +1,58 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.time.Instant;
+
+/**
+ * Checks that cameras are interned by name and coordinates, so that a camera that joins
+ * again elsewhere under the same name is not confused with the old one.
+ */
+public class CameraDictionaryTest {
+
+  private CameraDictionary dictionary;
+
+  // initialization for each test
+
+  @BeforeEach
+  public void setUp() {
+    dictionary = new CameraDictionary();
+  }
+
+  // tests
+
+  @Test
+  public void sameCameraSameOrdinal() {
+    int ordinal = dictionary.intern(new PersistentCamera("cam", 1, 2));
+    assertEquals(ordinal, dictionary.intern(new PersistentCamera("cam", 1, 2)));
+    assertEquals(1, dictionary.size());
+  }
+
+  @Test
+  public void movedCameraNewOrdinal() {
+    int before = dictionary.intern(new PersistentCamera("cam", 1, 2));
+    int after = dictionary.intern(new PersistentCamera("cam", 3, 4));
+    assertNotEquals(before, after);
+    assertEquals(3, dictionary.get(after).getLatitude());
+    assertEquals(before, dictionary.intern(new PersistentCamera("cam", 1, 2)));
+  }
+
+  @Test
+  public void clearedSiloTracksMovedCamera() {
+    Silo silo = new Silo(dictionary);
+    silo.addCamera(new PersistentCamera("cam", 1, 2));
+    silo.addObject(new PersistentObject("1", PersistentObject.ObjectType.PERSON, dictionary,
+        new PersistentObservation(Instant.ofEpochSecond(1), silo.getCamera("cam"))));
+
+    silo.clearState();
+    silo.addCamera(new PersistentCamera("cam", 3, 4));
+    silo.addObject(new PersistentObject("1", PersistentObject.ObjectType.PERSON, dictionary,
+        new PersistentObservation(Instant.ofEpochSecond(2), silo.getCamera("cam"))));
+
+    PersistentCamera seen = silo.getLatestObservation(PersistentObject.ObjectType.PERSON, "1").getCamera();
+    assertEquals(3, seen.getLatitude());
+    assertEquals(4, seen.getLongitude());
+  }
+}
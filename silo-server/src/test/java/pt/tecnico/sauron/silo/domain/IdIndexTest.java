@@ -0,0 +1,99 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that the candidates of a pattern include every indexed id that matches it,
+ * and that patterns with a literal part are narrowed down to ids that contain it.
+ */
+public class IdIndexTest {
+
+  private static final String[] PLATES = { "AA00BB", "AA11CC", "AB12CD", "ZZ99AA", "12AB34", "XY12AB" };
+  private static final String[] PERSONS = { "1", "12", "123", "1234", "2", "231", "3123" };
+
+  private IdIndex plates;
+  private IdIndex persons;
+
+  // initialization for each test
+
+  @BeforeEach
+  public void setUp() {
+    plates = new IdIndex(true);
+    for (String id : PLATES) {
+      plates.add(id);
+    }
+    persons = new IdIndex(false);
+    for (String id : PERSONS) {
+      persons.add(id);
+    }
+  }
+
+  /**
+   * @return the ids that match a pattern.
+   */
+  private static List<String> matching(String[] ids, String pattern) {
+    Pattern p = Pattern.compile(pattern);
+    List<String> res = new ArrayList<>();
+    for (String id : ids) {
+      if (p.matcher(id).matches()) {
+        res.add(id);
+      }
+    }
+    return res;
+  }
+
+  private static void assertCovers(String[] ids, IdIndex index, String pattern) {
+    Collection<String> candidates = index.candidates(pattern);
+    for (String id : matching(ids, pattern)) {
+      assertTrue(candidates.contains(id), id + " should be a candidate of " + pattern);
+    }
+  }
+
+  /**
+   * @return the candidates of a pattern, sorted.
+   */
+  private static List<String> candidates(IdIndex index, String pattern) {
+    return index.candidates(pattern).stream().sorted().collect(Collectors.toList());
+  }
+
+  // tests
+
+  @Test
+  public void candidatesIncludeEveryMatch() {
+    for (String pattern : new String[] { "AA.*", ".*AA", ".*12.*", "AB.*CD", ".*", "AA00BB", "A.*B.*", ".*B[BC]" }) {
+      assertCovers(PLATES, plates, pattern);
+    }
+    for (String pattern : new String[] { "12.*", ".*23", ".*12.*", "1.*4", ".*", "2", "[12]+" }) {
+      assertCovers(PERSONS, persons, pattern);
+    }
+  }
+
+  @Test
+  public void exactPattern() {
+    assertEquals(List.of("AA11CC"), new ArrayList<>(plates.candidates("AA11CC")));
+    assertTrue(plates.candidates("AA11CD").isEmpty());
+  }
+
+  @Test
+  public void literalPartsNarrow() {
+    assertEquals(List.of("123", "1234"), candidates(persons, "123.*"));
+    assertEquals(List.of("AB12CD"), candidates(plates, "AB.*CD"));
+    assertEquals(List.of("AA00BB"), candidates(plates, ".*0BB"));
+    assertEquals(List.of("12AB34", "XY12AB"), candidates(plates, ".*12A.*"));
+  }
+
+  @Test
+  public void clearedIndexHasNoCandidates() {
+    plates.clear();
+    assertTrue(plates.candidates("AA.*").isEmpty());
+    assertTrue(plates.candidates(".*").isEmpty());
+  }
+}
@@ -0,0 +1,115 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks puts, gets and clears, including from several threads at once, with the map
+ * sized well below the keys put so that its segments grow meanwhile.
+ */
+public class LongObjectMapTest {
+
+  private static final int THREADS = 8;
+  private static final int KEYS = 20000;
+
+  private LongObjectMap<String> map;
+
+  // initialization for each test
+
+  @BeforeEach
+  public void setUp() {
+    map = new LongObjectMap<>(16, THREADS);
+  }
+
+  // tests
+
+  @Test
+  public void putAndGet() {
+    assertNull(map.putIfAbsent(0, "zero"));
+    assertNull(map.putIfAbsent(Long.MAX_VALUE, "max"));
+    assertEquals("zero", map.get(0));
+    assertEquals("max", map.get(Long.MAX_VALUE));
+    assertNull(map.get(1));
+    assertEquals(2, map.size());
+  }
+
+  @Test
+  public void presentKeyKeepsValue() {
+    String first = "first";
+    map.putIfAbsent(7, first);
+    assertSame(first, map.putIfAbsent(7, "second"));
+    assertSame(first, map.get(7));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void growsAndClears() {
+    for (long k = 0; k < KEYS; k++) {
+      map.putIfAbsent(k, String.valueOf(k));
+    }
+    assertEquals(KEYS, map.size());
+    assertEquals(KEYS, new HashSet<>(map.values()).size());
+    for (long k = 0; k < KEYS; k++) {
+      assertEquals(String.valueOf(k), map.get(k));
+    }
+    map.clear();
+    assertEquals(0, map.size());
+    assertNull(map.get(0));
+    assertNull(map.putIfAbsent(0, "again"));
+  }
+
+  @Test
+  public void concurrentPutsAndGets() throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger inserted = new AtomicInteger();
+    AtomicInteger wrong = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      threads.add(new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        // Every thread puts every key, so that they race on each one, and reads back what it put
+        for (long k = 0; k < KEYS; k++) {
+          String value = String.valueOf(k);
+          String previous = map.putIfAbsent(k, value);
+          if (previous == null) {
+            inserted.incrementAndGet();
+          } else if (!previous.equals(value)) {
+            wrong.incrementAndGet();
+          }
+          if (!value.equals(map.get(k))) {
+            wrong.incrementAndGet();
+          }
+        }
+      }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(0, wrong.get());
+    assertEquals(KEYS, inserted.get(), "each key should be inserted once");
+    assertEquals(KEYS, map.size());
+    Set<String> values = new HashSet<>(map.values());
+    for (long k = 0; k < KEYS; k++) {
+      assertTrue(values.contains(String.valueOf(k)));
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that two silos given the same observations, in any order, end up with the same
+ * Merkle tree, and that the trees of silos that diverged differ at the root and in the
+ * buckets of the objects that differ, and only there.
+ */
+public class MerkleTreeTest {
+
+  private static final int OBJECTS = 200;
+  private static final int OBSERVATIONS = 1000;
+
+  private PersistentCamera cam;
+  private List<PersistentObservation> observations;
+  private List<String> ids;
+  private Silo silo1;
+  private Silo silo2;
+
+  // initialization for each test
+
+  @BeforeEach
+  public void setUp() {
+    cam = new PersistentCamera("cam", 1, 1);
+    silo1 = new Silo();
+    silo2 = new Silo();
+    silo1.addCamera(cam);
+    silo2.addCamera(cam);
+    Random random = new Random(42);
+    observations = new ArrayList<>();
+    ids = new ArrayList<>();
+    for (int i = 0; i < OBSERVATIONS; i++) {
+      observations.add(new PersistentObservation(Instant.ofEpochMilli(random.nextInt(100000)), cam, i + 1));
+      ids.add(String.valueOf(random.nextInt(OBJECTS)));
+    }
+  }
+
+  /**
+   * Adds observations to a silo, one object per observation.
+   */
+  private static void add(Silo silo, List<String> ids, List<PersistentObservation> observations, List<Integer> order) {
+    for (int i : order) {
+      silo.addObject(new PersistentObject(ids.get(i), PersistentObject.ObjectType.PERSON, silo.getCameraDictionary(),
+          observations.get(i)));
+    }
+  }
+
+  private List<Integer> order(long seed) {
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < OBSERVATIONS; i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, new Random(seed));
+    return order;
+  }
+
+  private static void assertSameTree(MerkleTree a, MerkleTree b) {
+    for (int level = 0; level <= MerkleTree.DEPTH; level++) {
+      assertArrayEquals(a.level(level), b.level(level), "level " + level + " should be equal");
+    }
+  }
+
+  // tests
+
+  @Test
+  public void emptyTreesAreEqual() {
+    assertSameTree(silo1.getMerkleTree(), silo2.getMerkleTree());
+  }
+
+  @Test
+  public void sameObservationsInAnyOrder() {
+    add(silo1, ids, observations, order(1));
+    add(silo2, ids, observations, order(2));
+    assertSameTree(silo1.getMerkleTree(), silo2.getMerkleTree());
+  }
+
+  @Test
+  public void repeatedObservationsAreNotCounted() {
+    add(silo1, ids, observations, order(1));
+    add(silo2, ids, observations, order(2));
+    // As a replica that receives the same updates twice, through gossip and anti-entropy
+    add(silo2, ids, observations, order(3));
+    assertSameTree(silo1.getMerkleTree(), silo2.getMerkleTree());
+  }
+
+  @Test
+  public void divergedTreesDifferOnlyWhereObjectsDiffer() {
+    add(silo1, ids, observations, order(1));
+    add(silo2, ids, observations, order(2));
+    String id = "diverged";
+    silo2.addObject(new PersistentObject(id, PersistentObject.ObjectType.PERSON, silo2.getCameraDictionary(),
+        new PersistentObservation(Instant.ofEpochMilli(1), cam, OBSERVATIONS + 1)));
+
+    MerkleTree tree1 = silo1.getMerkleTree();
+    MerkleTree tree2 = silo2.getMerkleTree();
+    assertNotEquals(tree1.level(0)[0], tree2.level(0)[0]);
+    long[] buckets1 = tree1.level(MerkleTree.DEPTH);
+    long[] buckets2 = tree2.level(MerkleTree.DEPTH);
+    int diverged = MerkleTree.bucket(PersistentObject.ObjectType.PERSON, id);
+    for (int b = 0; b < MerkleTree.BUCKETS; b++) {
+      if (b == diverged) {
+        assertNotEquals(buckets1[b], buckets2[b]);
+      } else {
+        assertEquals(buckets1[b], buckets2[b], "bucket " + b + " should be equal");
+      }
+    }
+    assertFalse(silo2.getObjectsInBuckets(Set.of(diverged)).isEmpty());
+
+    // Once the missing observation is merged, the trees are equal again
+    silo1.addObject(new PersistentObject(id, PersistentObject.ObjectType.PERSON, silo1.getCameraDictionary(),
+        new PersistentObservation(Instant.ofEpochMilli(1), cam, OBSERVATIONS + 1)));
+    assertSameTree(tree1, tree2);
+  }
+
+  @Test
+  public void sameTimeDifferentOriginDiffers() {
+    silo1.addObject(new PersistentObject("1", PersistentObject.ObjectType.PERSON, silo1.getCameraDictionary(),
+        new PersistentObservation(Instant.ofEpochMilli(1), cam, 1)));
+    silo2.addObject(new PersistentObject("1", PersistentObject.ObjectType.PERSON, silo2.getCameraDictionary(),
+        new PersistentObservation(Instant.ofEpochMilli(1), cam, 2)));
+    assertNotEquals(silo1.getMerkleTree().level(0)[0], silo2.getMerkleTree().level(0)[0]);
+  }
+}
@@ -0,0 +1,118 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Checks that observations are kept in chronological order however they arrive, and that
+ * merging another history only adds the observations not stored yet.
+ */
+public class ObservationHistoryTest {
+
+  private CameraDictionary cameras;
+  private PersistentCamera cam1;
+  private PersistentCamera cam2;
+  private ObservationHistory history;
+
+  // initialization for each test
+
+  @BeforeEach
+  public void setUp() {
+    cameras = new CameraDictionary();
+    cam1 = new PersistentCamera("cam1", 1, 1);
+    cam2 = new PersistentCamera("cam2", 2, 2);
+    history = new ObservationHistory(cameras);
+  }
+
+  private static PersistentObservation obs(long millis, PersistentCamera cam, long origin) {
+    return new PersistentObservation(Instant.ofEpochMilli(millis), cam, origin);
+  }
+
+  private ObservationHistory history(PersistentObservation... obs) {
+    ObservationHistory res = new ObservationHistory(cameras);
+    for (PersistentObservation o : obs) {
+      res.add(o);
+    }
+    return res;
+  }
+
+  // tests
+
+  @Test
+  public void emptyHistory() {
+    assertNull(history.latest());
+    assertEquals(0, history.size());
+  }
+
+  @Test
+  public void lateObservationsAreOrdered() {
+    for (long t : new long[] { 5, 1, 9, 3, 7 }) {
+      history.add(obs(t, cam1, t));
+    }
+    assertArrayEquals(new long[] { 1, 3, 5, 7, 9 }, history.times());
+    assertArrayEquals(new long[] { 1, 3, 5, 7, 9 }, history.origins());
+    assertEquals(Instant.ofEpochMilli(9), history.latest().getTimestamp());
+    assertEquals(Instant.ofEpochMilli(9), history.newestFirst().get(0).getTimestamp());
+    assertEquals(Instant.ofEpochMilli(1), history.oldestFirst().get(0).getTimestamp());
+  }
+
+  @Test
+  public void equalTimesKeepArrivalOrder() {
+    history.add(obs(5, cam1, 1));
+    history.add(obs(9, cam1, 2));
+    history.add(obs(5, cam2, 3));
+    assertArrayEquals(new long[] { 1, 3, 2 }, history.origins());
+  }
+
+  @Test
+  public void batchesAreMerged() {
+    history.addAll(List.of(obs(2, cam1, 1), obs(6, cam1, 2)));
+    // Unsorted, and interleaved with the stored observations
+    history.addAll(List.of(obs(7, cam2, 5), obs(1, cam2, 3), obs(4, cam2, 4)));
+    assertArrayEquals(new long[] { 1, 2, 4, 6, 7 }, history.times());
+    assertArrayEquals(new long[] { 3, 1, 4, 2, 5 }, history.origins());
+    // Newer than every stored observation
+    history.addAll(List.of(obs(8, cam1, 6)));
+    assertEquals(6, history.size());
+    assertEquals(6, history.latest().getOrigin());
+  }
+
+  @Test
+  public void mergeAddsOnlyMissingObservations() {
+    history = history(obs(1, cam1, 1), obs(3, cam1, 2));
+    ObservationHistory in = history(obs(1, cam1, 1), obs(2, cam2, 7), obs(3, cam1, 2), obs(4, cam1, 8));
+
+    ObservationHistory added = history.merge(in);
+    assertArrayEquals(new long[] { 2, 4 }, added.times());
+    assertArrayEquals(new long[] { 1, 2, 3, 4 }, history.times());
+
+    // Merging again has no effect
+    assertEquals(0, history.merge(in).size());
+    assertEquals(4, history.size());
+  }
+
+  @Test
+  public void mergeTellsObservationsApartByCameraAndOrigin() {
+    history = history(obs(5, cam1, 1));
+    ObservationHistory in = history(obs(5, cam1, 1), obs(5, cam2, 1), obs(5, cam1, 2), obs(5, cam1, 2));
+
+    // Repeated observations are counted, so both copies of the last one are added
+    assertEquals(3, history.merge(in).size());
+    assertEquals(4, history.size());
+    assertEquals(history.digest(0), in.digest(0));
+  }
+
+  @Test
+  public void copyIsIndependent() {
+    history.add(obs(1, cam1, 1));
+    ObservationHistory copy = history.copy();
+    history.add(obs(2, cam1, 2));
+    assertEquals(1, copy.size());
+    assertEquals(2, history.size());
+  }
+}
@@ -15,24 +15,29 @@ public class SpotterApp {
     for (int i = 0; i < args.length; i++) {
       System.out.printf("arg[%d] = %s%n", i, args[i]);
     }
-    if (args.length < 3 || args.length > 4) {
+    if (args.length < 2 || args.length > 3) {
       System.err.println("Wrong number of args");
     }
 
     final String zooHost = args[0];
     final String zooPort = args[1];
-    final int nRep = Integer.parseInt(args[2]);
+
+    // Number of shards, for a sharded deployment
+    final int nShards = Integer.getInteger("sauron.shards", 1);
 
     SiloServerFrontend frontend;
 
     try{
+      if(nShards > 1){
+          frontend = SiloServerFrontend.sharded(zooHost, zooPort, nShards);
+      }
       // If instance number is given
-      if(args.length == 4){
-          frontend = new SiloServerFrontend(zooHost, zooPort,nRep, args[3]);
+      else if(args.length == 3){
+          frontend = new SiloServerFrontend(zooHost, zooPort, args[2]);
         } 
       // If not, choose random instance
       else{
-          frontend = new SiloServerFrontend(zooHost, zooPort, nRep);
+          frontend = new SiloServerFrontend(zooHost, zooPort);
       }
 
       Spotter spotter = new Spotter(frontend);